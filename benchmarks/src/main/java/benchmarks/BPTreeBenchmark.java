@@ -0,0 +1,121 @@
+package benchmarks;
+
+import bptree.BPTree;
+import bptree.KeyRecordPair;
+import bptree.RangeAggregate;
+import main.DataGenerator;
+import memorypool.RecordBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BPTree inserts and searches, the tree is built once per trial and only read by the search benchmarks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BPTreeBenchmark {
+    // number of query keys cycled through, a power of two
+    private static final int NUM_QUERIES = 1 << 12;
+    private static final int INSERT_BATCH_SIZE = 10000;
+
+    @Param({"5", "25", "100"})
+    public int capacity;
+
+    @Param({"200"})
+    public int blockSize;
+
+    @Param({"100000", "1000000"})
+    public int numRecords;
+
+    @Param({"UNIFORM", "ZIPF", "SEQUENTIAL", "DUPLICATES"})
+    public DataGenerator.Distribution distribution;
+
+    private BenchmarkData data;
+    private BPTree tree;
+    private int[] queryKeys;
+    private int nextQuery;
+    // width of the wide range queries, a tenth of the key domain
+    private int rangeWidth;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new BenchmarkData(numRecords, blockSize, distribution);
+        tree = new BPTree(capacity, data.db);
+        tree.bulkLoad(data.sortedPairs(), 1.0f);
+        queryKeys = data.queryKeys(NUM_QUERIES);
+        int maxKey = 0;
+        for (int key : data.keys) maxKey = Math.max(maxKey, key);
+        rangeWidth = Math.max(1, maxKey / 10);
+    }
+
+    private int nextQueryKey() {
+        return queryKeys[nextQuery++ & (NUM_QUERIES - 1)];
+    }
+
+    /**
+     * inserts every record one key at a time into an empty tree
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, time = 5)
+    public BPTree insertKey() {
+        BPTree t = new BPTree(capacity, data.db);
+        for (int i = 0; i < data.keys.length; i++) {
+            t.insertKey(data.keys[i], data.records[i]);
+        }
+        return t;
+    }
+
+    /**
+     * inserts every record into an empty tree in batches of INSERT_BATCH_SIZE, in the order they were generated
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, time = 5)
+    public BPTree insertBatch() {
+        BPTree t = new BPTree(capacity, data.db);
+        for (int i = 0; i < data.keys.length; i += INSERT_BATCH_SIZE) {
+            ArrayList<KeyRecordPair> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+            for (int j = i; j < Math.min(data.keys.length, i + INSERT_BATCH_SIZE); j++) {
+                batch.add(new KeyRecordPair(data.keys[j], data.records[j]));
+            }
+            t.insertBatch(batch);
+        }
+        return t;
+    }
+
+    @Benchmark
+    public ArrayList<RecordBlock> searchNodesPoint() {
+        int key = nextQueryKey();
+        return tree.searchNodes(key, key);
+    }
+
+    @Benchmark
+    public ArrayList<RecordBlock> searchNodesWideRange() {
+        int minKey = nextQueryKey();
+        return tree.searchNodes(minKey, minKey + rangeWidth);
+    }
+
+    @Benchmark
+    public RangeAggregate aggregateRangeWide() {
+        int minKey = nextQueryKey();
+        return tree.aggregateRange(minKey, minKey + rangeWidth);
+    }
+}
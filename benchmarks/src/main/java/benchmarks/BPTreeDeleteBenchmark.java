@@ -0,0 +1,77 @@
+package benchmarks;
+
+import bptree.BPTree;
+import main.DataGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BPTree.findAndDeleteKey, deletes change the tree so it is rebuilt before every iteration and each iteration
+ * deletes a batch of distinct keys in a seeded random order
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = BPTreeDeleteBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = BPTreeDeleteBenchmark.BATCH_SIZE)
+@Fork(1)
+public class BPTreeDeleteBenchmark {
+    static final int BATCH_SIZE = 200;
+
+    @Param({"5", "25", "100"})
+    public int capacity;
+
+    @Param({"200"})
+    public int blockSize;
+
+    @Param({"100000", "1000000"})
+    public int numRecords;
+
+    @Param({"UNIFORM", "ZIPF", "SEQUENTIAL", "DUPLICATES"})
+    public DataGenerator.Distribution distribution;
+
+    private BenchmarkData data;
+    private BPTree tree;
+    private int[] deleteKeys;
+    private int nextDelete;
+
+    @Setup(Level.Trial)
+    public void setUpData() {
+        data = new BenchmarkData(numRecords, blockSize, distribution);
+        int[] distinct = Arrays.stream(data.keys).distinct().toArray();
+        Random random = new Random(BenchmarkData.SEED);
+        for (int i = distinct.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = distinct[i];
+            distinct[i] = distinct[j];
+            distinct[j] = tmp;
+        }
+        deleteKeys = distinct;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpTree() {
+        tree = new BPTree(capacity, data.db);
+        tree.bulkLoad(data.sortedPairs(), 1.0f);
+        nextDelete = 0;
+    }
+
+    @Benchmark
+    public void findAndDeleteKey() {
+        tree.findAndDeleteKey(deleteKeys[nextDelete++ % deleteKeys.length]);
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import bptree.KeyRecordPair;
+import main.DataGenerator;
+import memorypool.MemoryPool;
+import memorypool.RecordBlock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * records for the benchmarks, generated by DataGenerator from a fixed seed so every run sees the same data
+ */
+public class BenchmarkData {
+    public static final long SEED = DataGenerator.DEFAULT_SEED;
+    // number of distinct numVotes values for UNIFORM, ZIPF and DUPLICATES
+    public static final int NUM_DISTINCT_KEYS = 100000;
+
+    MemoryPool db;
+    int[] keys;
+    RecordBlock[] records;
+
+    /**
+     * writes numRecords records into a new memory pool
+     * @param numRecords, number of records
+     * @param blockSize, block size of the memory pool
+     * @param distribution, distribution of numVotes
+     */
+    BenchmarkData(int numRecords, int blockSize, DataGenerator.Distribution distribution) {
+        this.db = new MemoryPool((int) Math.min(Integer.MAX_VALUE, (long) numRecords * 40 + 64L * blockSize), blockSize);
+        this.keys = new int[numRecords];
+        this.records = new RecordBlock[numRecords];
+        DataGenerator generator = new DataGenerator(distribution, NUM_DISTINCT_KEYS, SEED);
+        for (int i = 0; i < numRecords; i++) {
+            generator.next();
+            long rid = db.writeRecord(generator.getTconstBuffer(), 0, generator.getTconstLen(),
+                    generator.getAvgRating(), generator.getNumVotes());
+            keys[i] = generator.getNumVotes();
+            records[i] = db.getRecordBlock(rid);
+        }
+    }
+
+    /**
+     * @return, key and record pairs sorted by key, for bulk loading
+     */
+    ArrayList<KeyRecordPair> sortedPairs() {
+        ArrayList<KeyRecordPair> pairs = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            pairs.add(new KeyRecordPair(keys[i], records[i]));
+        }
+        pairs.sort(Comparator.comparingInt(KeyRecordPair::getKey));
+        return pairs;
+    }
+
+    /**
+     * @param count, number of query keys
+     * @return, keys picked from the records, so popular keys are queried as often as they occur
+     */
+    int[] queryKeys(int count) {
+        Random random = new Random(SEED + 1);
+        int[] queries = new int[count];
+        for (int i = 0; i < count; i++) {
+            queries[i] = keys[random.nextInt(keys.length)];
+        }
+        return queries;
+    }
+}
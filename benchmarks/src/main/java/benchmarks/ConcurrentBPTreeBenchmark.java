@@ -0,0 +1,154 @@
+package benchmarks;
+
+import bptree.BPTree;
+import main.DataGenerator;
+import memorypool.RecordBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BPTree in concurrent mode against a BPTree shared behind one lock, as throughput under the number of threads given
+ * with -t, run with -t 1, -t 2, -t 4 and so on to see how each scales
+ * the search benchmarks only read, the mixed groups run three searching threads per thread that inserts and deletes
+ * keys above every loaded key, so the trees keep their size, -t counts threads across groups so it is rounded up to
+ * a multiple of four for them
+ * java -jar benchmarks/target/benchmarks.jar ConcurrentBPTreeBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentBPTreeBenchmark {
+    private static final int NUM_QUERIES = 1 << 12;
+    // keys each writing thread cycles through
+    private static final int KEYS_PER_WRITER = 1 << 10;
+
+    @Param({"25"})
+    public int capacity;
+
+    @Param({"1000000"})
+    public int numRecords;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public DataGenerator.Distribution distribution;
+
+    private BPTree concurrentTree;
+    private BPTree lockedTree;
+    private int[] queryKeys;
+    private int firstFreeKey;
+    private RecordBlock insertRecord;
+
+    /**
+     * query and write position of one thread, each thread starts somewhere else in the query keys and writes its
+     * own range of keys
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int nextQuery;
+        int nextWrite;
+        int writeBase;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            nextQuery = threadParams.getThreadIndex() * 997;
+            nextWrite = 0;
+            writeBase = threadParams.getThreadIndex() * KEYS_PER_WRITER;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(numRecords, 200, distribution);
+        lockedTree = new BPTree(capacity, data.db);
+        lockedTree.bulkLoad(data.sortedPairs(), 1.0f);
+        concurrentTree = new BPTree(capacity, data.db, true);
+        concurrentTree.bulkLoad(data.sortedPairs(), 1.0f);
+        int maxKey = 0;
+        for (int key : data.keys) {
+            maxKey = Math.max(maxKey, key);
+        }
+        queryKeys = data.queryKeys(NUM_QUERIES);
+        firstFreeKey = maxKey + 1;
+        insertRecord = data.records[0];
+    }
+
+    private int nextQueryKey(Cursor cursor) {
+        return queryKeys[cursor.nextQuery++ & (NUM_QUERIES - 1)];
+    }
+
+    private int nextWriteKey(Cursor cursor) {
+        return firstFreeKey + cursor.writeBase + (cursor.nextWrite++ & (KEYS_PER_WRITER - 1));
+    }
+
+    @Benchmark
+    public ArrayList<RecordBlock> searchConcurrent(Cursor cursor) {
+        int key = nextQueryKey(cursor);
+        return concurrentTree.searchNodes(key, key);
+    }
+
+    @Benchmark
+    public ArrayList<RecordBlock> searchLocked(Cursor cursor) {
+        int key = nextQueryKey(cursor);
+        synchronized (lockedTree) {
+            return lockedTree.searchNodes(key, key);
+        }
+    }
+
+    @Benchmark
+    @Group("mixedConcurrent")
+    @GroupThreads(3)
+    public ArrayList<RecordBlock> mixedConcurrentSearch(Cursor cursor) {
+        int key = nextQueryKey(cursor);
+        return concurrentTree.searchNodes(key, key);
+    }
+
+    @Benchmark
+    @Group("mixedConcurrent")
+    @GroupThreads(1)
+    public int mixedConcurrentWrite(Cursor cursor) {
+        int key = nextWriteKey(cursor);
+        concurrentTree.insertKey(key, insertRecord);
+        concurrentTree.findAndDeleteKey(key);
+        return concurrentTree.getNumNodesAccessed();
+    }
+
+    @Benchmark
+    @Group("mixedLocked")
+    @GroupThreads(3)
+    public ArrayList<RecordBlock> mixedLockedSearch(Cursor cursor) {
+        int key = nextQueryKey(cursor);
+        synchronized (lockedTree) {
+            return lockedTree.searchNodes(key, key);
+        }
+    }
+
+    @Benchmark
+    @Group("mixedLocked")
+    @GroupThreads(1)
+    public int mixedLockedWrite(Cursor cursor) {
+        int key = nextWriteKey(cursor);
+        synchronized (lockedTree) {
+            lockedTree.insertKey(key, insertRecord);
+            lockedTree.findAndDeleteKey(key);
+            return lockedTree.getNumNodes();
+        }
+    }
+}
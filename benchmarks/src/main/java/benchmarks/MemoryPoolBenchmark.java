@@ -0,0 +1,73 @@
+package benchmarks;
+
+import main.DataGenerator;
+import memorypool.MemoryPool;
+import memorypool.RecordBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MemoryPool brute force scans, the pool is loaded once per trial and only read
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemoryPoolBenchmark {
+    private static final int NUM_QUERIES = 1 << 12;
+
+    @Param({"200", "500", "4096"})
+    public int blockSize;
+
+    @Param({"100000", "1000000"})
+    public int numRecords;
+
+    @Param({"UNIFORM", "ZIPF", "SEQUENTIAL", "DUPLICATES"})
+    public DataGenerator.Distribution distribution;
+
+    private MemoryPool db;
+    private int[] queryKeys;
+    private int nextQuery;
+    private int rangeWidth;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(numRecords, blockSize, distribution);
+        db = data.db;
+        queryKeys = data.queryKeys(NUM_QUERIES);
+        int maxKey = 0;
+        for (int key : data.keys) maxKey = Math.max(maxKey, key);
+        rangeWidth = Math.max(1, maxKey / 10);
+    }
+
+    private int nextQueryKey() {
+        return queryKeys[nextQuery++ & (NUM_QUERIES - 1)];
+    }
+
+    @Benchmark
+    public ArrayList<RecordBlock> searchBlocksPoint() {
+        int key = nextQueryKey();
+        return db.searchBlocks(key, key);
+    }
+
+    @Benchmark
+    public ArrayList<RecordBlock> searchBlocksWideRange() {
+        int minKey = nextQueryKey();
+        return db.searchBlocks(minKey, minKey + rangeWidth);
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import main.DataGenerator;
+import memorypool.MemoryPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MemoryPool.deleteKey, the pool is reloaded before every iteration and each iteration deletes a batch of keys
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = MemoryPoolDeleteBenchmark.BATCH_SIZE)
+@Measurement(iterations = 5, batchSize = MemoryPoolDeleteBenchmark.BATCH_SIZE)
+@Fork(1)
+public class MemoryPoolDeleteBenchmark {
+    static final int BATCH_SIZE = 20;
+
+    @Param({"200", "500", "4096"})
+    public int blockSize;
+
+    @Param({"100000", "1000000"})
+    public int numRecords;
+
+    @Param({"UNIFORM", "ZIPF", "SEQUENTIAL", "DUPLICATES"})
+    public DataGenerator.Distribution distribution;
+
+    private MemoryPool db;
+    private int[] deleteKeys;
+    private int nextDelete;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(numRecords, blockSize, distribution);
+        db = data.db;
+        deleteKeys = data.queryKeys(BATCH_SIZE);
+        nextDelete = 0;
+    }
+
+    @Benchmark
+    public void deleteKey() {
+        db.deleteKey(deleteKeys[nextDelete++ % BATCH_SIZE]);
+    }
+}
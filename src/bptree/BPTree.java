@@ -1,16 +1,26 @@
 package bptree;
 
 import main.Main;
+import memorypool.MemoryPool;
 import memorypool.RecordBlock;
 
 import java.sql.Array;
 import java.util.logging.Logger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BPTree {
-    private Node root;
+    private volatile Node root;
     private int capacity;
     private int numNodes;
     private int numLevels;
@@ -19,10 +29,42 @@ public class BPTree {
     private int minNonLeafChildren;
     private int minLeafKeys;
     private int minLeafChildren;
+    // memory pool the record ids in the leaves refer to
+    private MemoryPool db;
+    private boolean concurrent;
+    // concurrent mode only, writers hold it shared to change a single leaf and exclusively to split or merge nodes
+    private StampedLock structureLock;
+    // nodes write latched by the exclusive change in progress, so optimistic readers of them restart
+    private ArrayList<Node> lockedNodes;
+    // concurrent mode only, each thread counts the nodes accessed by its own last operation
+    private ThreadLocal<int[]> threadNodesAccessed;
+    // version nodes created or copied from now on belong to, every published version is older
+    private int epoch;
+    // last version published for readers
+    private volatile TreeSnapshot published;
     static Logger logger = Logger.getLogger(Main.class.getName());
 
-    public BPTree(int capacity) {
+    public BPTree(int capacity, MemoryPool db) {
+        this(capacity, db, false);
+    }
+
+    /**
+     * in concurrent mode any number of threads may search and change the tree at once
+     * every node has a latch whose optimistic stamp acts as its version, searches never latch anything, they read a
+     * node, take the stamp of the child they follow and then validate the node's stamp, restarting if a writer got in
+     * between
+     * inserts and deletes that stay within one leaf hold the structure lock shared and latch only that leaf, and add to
+     * the aggregates of its ancestors atomically, so writers on different leaves run side by side
+     * splits, merges, range deletes, bulk loads and relocations hold the structure lock exclusively and latch every node
+     * they change
+     * the memory pool behind the tree is not thread safe, callers that change it still have to do so one at a time
+     * @param capacity, most keys per node
+     * @param db, memory pool the record ids in the leaves refer to
+     * @param concurrent, whether many threads may use the tree at once
+     */
+    public BPTree(int capacity, MemoryPool db, boolean concurrent) {
         this.root = null;
+        this.db = db;
         this.capacity = capacity;
         this.numNodes = 0;
         this.numLevels = 0;
@@ -31,6 +73,16 @@ public class BPTree {
         this.minNonLeafChildren = (int)Math.floor(capacity / 2) + 1;
         this.minLeafKeys = (int)Math.floor((capacity + 1) / 2);
         this.minLeafChildren = (int)Math.floor((capacity + 1) / 2);
+        this.concurrent = concurrent;
+        if (concurrent) {
+            this.structureLock = new StampedLock();
+            this.lockedNodes = new ArrayList<>();
+            this.threadNodesAccessed = ThreadLocal.withInitial(() -> new int[1]);
+        }
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
     }
 
     public int getCapacity() {
@@ -45,8 +97,138 @@ public class BPTree {
         return numLevels;
     }
 
+    /**
+     * @return, nodes accessed by the last search, insert or delete, in concurrent mode by the calling thread's last one
+     */
     public int getNumNodesAccessed() {
-        return numNodesAccessed;
+        return concurrent ? threadNodesAccessed.get()[0] : numNodesAccessed;
+    }
+
+    private LeafNode newLeafNode() {
+        LeafNode node = new LeafNode(capacity);
+        node.setEpoch(epoch);
+        if (concurrent) node.enableLatch();
+        return node;
+    }
+
+    private NonLeafNode newNonLeafNode() {
+        NonLeafNode node = new NonLeafNode(capacity);
+        node.setEpoch(epoch);
+        if (concurrent) node.enableLatch();
+        return node;
+    }
+
+    /**
+     * publishes the tree as it is now for readers on other threads, which get it from snapshot
+     * changes from here on copy every node they modify that the published version shares, along the path from the
+     * root, so the published version never changes under its readers, nodes already copied since the last publish
+     * are changed in place, so a batch of changes between publishes copies each shared node at most once
+     * called by the thread that changes the tree, between changes
+     */
+    public void publish() {
+        if (concurrent) throw new IllegalStateException("Snapshots are not supported in concurrent mode");
+        published = new TreeSnapshot(root, capacity, numNodes, numLevels, db);
+        epoch += 1;
+    }
+
+    /**
+     * @return, handle on the last version published, or on an empty tree if nothing was published yet, to read from
+     * any thread without locks while the tree is changed, each call returns its own handle
+     */
+    public TreeSnapshot snapshot() {
+        if (concurrent) throw new IllegalStateException("Snapshots are not supported in concurrent mode");
+        TreeSnapshot snapshot = published;
+        return snapshot != null ? snapshot.handle() : new TreeSnapshot(null, capacity, 0, 0, db);
+    }
+
+    /**
+     * @return, root to change, copied first if a published version shares it
+     */
+    private Node ownRoot() {
+        if (root != null && root.getEpoch() != epoch) {
+            root = copyNode(root);
+        }
+        return root;
+    }
+
+    /**
+     * @param parent, node of the current version
+     * @param idx, position of the child
+     * @return, child to change, copied first if a published version shares it
+     */
+    private Node ownChild(NonLeafNode parent, int idx) {
+        Node child = parent.getChild(idx);
+        if (child.getEpoch() == epoch) return child;
+        Node copy = copyNode(child);
+        parent.setChild(idx, copy);
+        return copy;
+    }
+
+    /**
+     * copies a node into the current version, its siblings and children are pointed at the copy in place, as
+     * published versions are read from the root down without following those links
+     * @param node, node of a published version
+     * @return, copy of node
+     */
+    private Node copyNode(Node node) {
+        Node copy;
+        if (node instanceof LeafNode) {
+            copy = ((LeafNode) node).copy(epoch);
+        } else {
+            NonLeafNode nonLeafNode = ((NonLeafNode) node).copy(epoch);
+            for (int i = 0; i < nonLeafNode.getNumChildren(); i++) {
+                nonLeafNode.getChild(i).setParent(nonLeafNode);
+            }
+            copy = nonLeafNode;
+        }
+        if (copy.getPrevNode() != null) copy.getPrevNode().setNextNode(copy);
+        if (copy.getNextNode() != null) copy.getNextNode().setPrevNode(copy);
+        return copy;
+    }
+
+    /**
+     * @param key, key to look for
+     * @return, leaf key belongs in, with every node on the path to it owned by the current version
+     */
+    private LeafNode ownLeaf(int key) {
+        Node node = ownRoot();
+        while (node instanceof NonLeafNode) {
+            NonLeafNode currNode = (NonLeafNode) node;
+            node = ownChild(currNode, currNode.upperBound(key));
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * takes the structure lock exclusively in concurrent mode, for changes that span more than one leaf
+     * @return, stamp to pass to unlockStructure
+     */
+    private long lockStructure() {
+        return concurrent ? structureLock.writeLock() : 0;
+    }
+
+    /**
+     * releases every node latched since lockStructure and then the structure lock
+     * @param stamp, stamp from lockStructure
+     */
+    private void unlockStructure(long stamp) {
+        if (!concurrent) return;
+        for (Node node : lockedNodes) {
+            node.getLatch().tryUnlockWrite();
+        }
+        lockedNodes.clear();
+        threadNodesAccessed.get()[0] = numNodesAccessed;
+        structureLock.unlockWrite(stamp);
+    }
+
+    /**
+     * latches a node that the exclusive change in progress is about to modify, until unlockStructure
+     * @param node, node to latch, nothing happens outside concurrent mode
+     */
+    private void lockNode(Node node) {
+        if (!concurrent || node.getLatch().isWriteLocked()) return;
+        node.getLatch().writeLock();
+        lockedNodes.add(node);
     }
 
     /**
@@ -57,38 +239,49 @@ public class BPTree {
             System.err.println("Root is null...");
         }
         String s = "Root elements: ";
-        for (int i = 0; i < root.getElements().size(); i++) {
-            s += root.getElements().get(i) + " ";
+        for (int i = 0; i < root.getNumKeys(); i++) {
+            s += root.getKey(i) + " ";
         }
         return s;
     }
 
     /**
      * inserts recordBlock into bptree
+     * in concurrent mode an insert only latches its leaf, unless the leaf is full and has to split
      * @param key, key to insert
      * @param recordBlock, the record and block which it is in
      */
     public void insertKey(int key, RecordBlock recordBlock) {
+        if (concurrent && insertIntoLeaf(key, recordBlock)) return;
+        long stamp = lockStructure();
+        try {
+            insert(key, recordBlock);
+        } finally {
+            unlockStructure(stamp);
+        }
+    }
+
+    private void insert(int key, RecordBlock recordBlock) {
         // first time insert
         if (root == null) {
-            root = new LeafNode();
-            LeafNode node = (LeafNode) root;
-            node.getElements().add(0, key);
-            node.getRecordBlocks().add(0, new ArrayList());
+            LeafNode node = newLeafNode();
+            node.insertEntry(0, key, new PostingList(epoch));
+            node.addRecordBlock(0, recordBlock);
             numNodes += 1;
             numLevels += 1;
+            root = node;
             return;
         }
         // second time and onwards insert
-        KeyNodePair newPair = recursiveInsert(root, key, recordBlock);
+        KeyNodePair newPair = recursiveInsert(ownRoot(), key, recordBlock);
 
         // by the time it reaches this point and is not null, means root is overloaded
         // first child lowest key not in elements
         if (newPair != null) {
-            NonLeafNode newRoot = new NonLeafNode();
-            newRoot.getChildren().add(0, root);
-            newRoot.getElements().add(0, newPair.getKey());
-            newRoot.getChildren().add(1, newPair.getNode());
+            NonLeafNode newRoot = newNonLeafNode();
+            newRoot.appendChild(root);
+            newRoot.appendKey(newPair.getKey());
+            newRoot.appendChild(newPair.getNode());
 
             root.setParent(newRoot);
             newPair.getNode().setParent(newRoot);
@@ -114,53 +307,41 @@ public class BPTree {
         // if node is leaf node, root starts off as leaf node
         if (node instanceof LeafNode) {
             LeafNode currNode = (LeafNode) node;
-            int idx;
 
-            // adding to recordBlocks / recordBlocks + elements (if key not present)
-            for (idx = 0; idx < currNode.getElements().size(); idx++) {
-                if (key <= currNode.getElements().get(idx)) break;
-            }
+            // adding to recordBlocks / recordBlocks + keys (if key not present)
+            int idx = currNode.findKey(key);
 
-            // adding key to elements and new arraylist if key not found
-            if (!currNode.getElements().contains(key)) {
-                currNode.getElements().add(idx, key);
-                currNode.getRecordBlocks().add(idx, new ArrayList<>());
+            lockNode(currNode);
+            // adding key and new arraylist if key not found
+            if (idx < 0) {
+                idx = -idx - 1;
+                currNode.insertEntry(idx, key, new PostingList(epoch));
             }
 
             // adding RecordBlock to recordBlocks
-            currNode.getRecordBlocks().get(idx).add(recordBlock);
+            currNode.addRecordBlock(idx, recordBlock);
 
             // if need to split, split and return newPair
-            if (currNode.getElements().size() > capacity) {
+            if (currNode.getNumKeys() > capacity) {
                 newPair = createLeafNode(currNode);
                 numNodes += 1;
             }
         }
         else {
             NonLeafNode currNode = (NonLeafNode) node;
-            Node childNode = null;
-            int idx;
-
-            // if key less than elements value, we go to the child on the left
-            for (idx = 0; idx < currNode.getElements().size(); idx++) {
-                if (key < currNode.getElements().get(idx)) {
-                    childNode = currNode.getChildren().get(idx);
-                    break;
-                }
-            }
 
-            // use last bucket if all >= key
-            if (childNode == null) {
-                childNode = currNode.getChildren().get(idx);
-            }
+            // if key less than a key in the node, we go to the child on its left, else the last child
+            int idx = currNode.upperBound(key);
+            Node childNode = ownChild(currNode, idx);
 
             childNewPair = recursiveInsert(childNode, key, recordBlock);
 
             // if child node is overloaded
             if (childNewPair != null) {
-                currNode.getElements().add(idx, childNewPair.getKey());
-                currNode.getChildren().add(idx + 1, childNewPair.getNode());
-                if (currNode.getElements().size() > capacity) {
+                lockNode(currNode);
+                currNode.insertKey(idx, childNewPair.getKey());
+                currNode.insertChildAt(idx + 1, childNewPair.getNode());
+                if (currNode.getNumKeys() > capacity) {
                     newPair = createNonLeafNode(currNode);
                     numNodes += 1;
                 }
@@ -175,29 +356,13 @@ public class BPTree {
      * @return KeyNodePair with lowest key
      */
     private KeyNodePair createLeafNode(LeafNode node) {
-        LeafNode newLeafNode = new LeafNode();
+        LeafNode newLeafNode = newLeafNode();
 
-        int numEntries = node.getElements().size();
+        int numEntries = node.getNumKeys();
         int midpoint = (int)Math.floor((numEntries + 1) / 2);
 
-        ArrayList<Integer> firstElements = new ArrayList<>();
-        ArrayList<ArrayList<RecordBlock>> firstRecordBlocks = new ArrayList<>();
-        ArrayList<Integer> secondElements = new ArrayList<>();
-        ArrayList<ArrayList<RecordBlock>> secondRecordBlocks = new ArrayList<>();
-
-        for (int i = 0; i < midpoint; i++) {
-            firstElements.add(node.getElements().get(i));
-            firstRecordBlocks.add(node.getRecordBlocks().get(i));
-        }
-        for (int i = midpoint; i < numEntries; i++) {
-            secondElements.add(node.getElements().get(i));
-            secondRecordBlocks.add(node.getRecordBlocks().get(i));
-        }
-
-        node.setElements(firstElements);
-        node.setRecordBlocks((firstRecordBlocks));
-        newLeafNode.setElements(secondElements);
-        newLeafNode.setRecordBlocks(secondRecordBlocks);
+        // second half of the entries moves to the new node
+        node.moveEntriesTo(midpoint, newLeafNode);
 
         // do linked list stuff
         LeafNode nextNode = (LeafNode) node.getNextNode();
@@ -211,7 +376,7 @@ public class BPTree {
         // set parent
         newLeafNode.setParent(node.getParent());
 
-        return (new KeyNodePair(newLeafNode.getElements().get(0), newLeafNode));
+        return (new KeyNodePair(newLeafNode.getKey(0), newLeafNode));
     }
 
     /**
@@ -220,42 +385,22 @@ public class BPTree {
      * @return keynodepair with lowest key from new node
      */
     private KeyNodePair createNonLeafNode(NonLeafNode node) {
-        NonLeafNode newNonLeafNode = new NonLeafNode();
+        NonLeafNode newNonLeafNode = newNonLeafNode();
 
-        int numEntries = node.getElements().size();
+        int numEntries = node.getNumKeys();
         int entriesMidpoint = (int)Math.floor(numEntries / 2);
-        int numChildren = node.getChildren().size();
+        int numChildren = node.getNumChildren();
         int childrenMidpoint = (int)Math.floor((numChildren + 1) / 2);
 
-        // create the new KeyNodePair first, as new node will not have the midpoint element
-        KeyNodePair newPair = new KeyNodePair(node.getElements().get(entriesMidpoint), newNonLeafNode);
-
-        ArrayList<Integer> firstElements = new ArrayList<>();
-        ArrayList<Node> firstChildren = new ArrayList<>();
-        ArrayList<Integer> secondElements = new ArrayList<>();
-        ArrayList<Node> secondChildren = new ArrayList<>();
-
-        for (int i = 0; i < entriesMidpoint; i++) {
-            firstElements.add(node.getElements().get(i));
-        }
-        for (int i = 0; i < childrenMidpoint; i++) {
-            firstChildren.add(node.getChildren().get(i));
-        }
-        for (int i = entriesMidpoint + 1; i < numEntries; i++) {
-            secondElements.add(node.getElements().get(i));
-        }
-        for (int i = childrenMidpoint; i < numChildren; i++) {
-            secondChildren.add(node.getChildren().get(i));
-        }
+        // create the new KeyNodePair first, as new node will not have the midpoint key
+        KeyNodePair newPair = new KeyNodePair(node.getKey(entriesMidpoint), newNonLeafNode);
 
-        node.setElements(firstElements);
-        node.setChildren(firstChildren);
-        newNonLeafNode.setElements(secondElements);
-        newNonLeafNode.setChildren(secondChildren);
+        // keys after the midpoint and the second half of the children move to the new node
+        node.moveEntriesTo(entriesMidpoint, childrenMidpoint, newNonLeafNode);
 
         newNonLeafNode.setParent(node.getParent());
-        for (Node child : newNonLeafNode.getChildren())
-            child.setParent(newNonLeafNode);
+        for (int i = 0; i < newNonLeafNode.getNumChildren(); i++)
+            newNonLeafNode.getChild(i).setParent(newNonLeafNode);
         if (node.getNextNode() != null)
             node.getNextNode().setPrevNode(newNonLeafNode);
         newNonLeafNode.setPrevNode(node);
@@ -265,6 +410,342 @@ public class BPTree {
         return newPair;
     }
 
+    /**
+     * builds the tree bottom up from pairs sorted by key, replacing any existing contents
+     * leaves and nonleaf nodes are packed to fillFactor of capacity, instead of being split one insert at a time
+     * @param sortedPairs, key and recordBlock pairs in ascending order of key
+     * @param fillFactor, fraction of each node to fill, nodes are never filled below the minimum occupancy
+     */
+    public void bulkLoad(ArrayList<KeyRecordPair> sortedPairs, float fillFactor) {
+        long stamp = lockStructure();
+        try {
+            build(sortedPairs, fillFactor);
+        } finally {
+            unlockStructure(stamp);
+        }
+    }
+
+    private void build(ArrayList<KeyRecordPair> sortedPairs, float fillFactor) {
+        // readers still on the old tree restart once it is replaced
+        if (root != null) lockNode(root);
+        if (sortedPairs.size() == 0) {
+            root = null;
+            numNodes = 0;
+            numLevels = 0;
+            return;
+        }
+
+        // group duplicate keys into a single entry, as in recursiveInsert
+        int[] keys = new int[sortedPairs.size()];
+        ArrayList<PostingList> postings = new ArrayList<>();
+        int numKeys = 0;
+        for (KeyRecordPair pair : sortedPairs) {
+            int key = pair.getKey();
+            if (numKeys > 0 && key < keys[numKeys - 1]) {
+                throw new IllegalArgumentException("Bulk load input is not sorted at key " + key);
+            }
+            if (numKeys == 0 || key != keys[numKeys - 1]) {
+                keys[numKeys++] = key;
+                postings.add(new PostingList(epoch));
+            }
+            RecordBlock rb = pair.getRecordBlock();
+            postings.get(numKeys - 1).add(rb.getRid(), rb.getAvgRating());
+        }
+
+        // build leaf level
+        int leafTarget = Math.max(minLeafKeys, Math.min(capacity, Math.round(capacity * fillFactor)));
+        int[] leafSizes = partitionSizes(numKeys, leafTarget, minLeafKeys, capacity);
+        ArrayList<Node> level = new ArrayList<>();
+        int start = 0;
+        for (int size : leafSizes) {
+            LeafNode leafNode = newLeafNode();
+            for (int i = start; i < start + size; i++) {
+                leafNode.appendEntry(keys[i], postings.get(i));
+            }
+            start += size;
+            linkToPrevNode(level, leafNode);
+            level.add(leafNode);
+        }
+        int newNumNodes = level.size();
+        int newNumLevels = 1;
+
+        // build nonleaf levels until a single root remains
+        int childTarget = Math.max(minNonLeafChildren, Math.min(capacity + 1, Math.round((capacity + 1) * fillFactor)));
+        while (level.size() > 1) {
+            int[] nodeSizes = partitionSizes(level.size(), childTarget, minNonLeafChildren, capacity + 1);
+            ArrayList<Node> parentLevel = new ArrayList<>();
+            start = 0;
+            for (int size : nodeSizes) {
+                NonLeafNode nonLeafNode = newNonLeafNode();
+                for (int i = start; i < start + size; i++) {
+                    Node child = level.get(i);
+                    if (i > start) {
+                        nonLeafNode.appendKey(getSmallestKeyFromChildren(child));
+                    }
+                    nonLeafNode.appendChild(child);
+                    child.setParent(nonLeafNode);
+                }
+                start += size;
+                linkToPrevNode(parentLevel, nonLeafNode);
+                parentLevel.add(nonLeafNode);
+            }
+            newNumNodes += parentLevel.size();
+            newNumLevels += 1;
+            level = parentLevel;
+        }
+        // the old tree stays searchable until the new one is complete
+        numNodes = newNumNodes;
+        numLevels = newNumLevels;
+        root = level.get(0);
+    }
+
+    /**
+     * splits numEntries into node sizes of target, merging or evening out the last node if it is below min
+     * @param numEntries, number of keys or children to distribute
+     * @param target, preferred number of entries per node
+     * @param min, minimum number of entries per node
+     * @param max, maximum number of entries per node
+     * @return, number of entries for each node in order
+     */
+    private int[] partitionSizes(int numEntries, int target, int min, int max) {
+        int numGroups = (numEntries + target - 1) / target;
+        int[] sizes = new int[numGroups];
+        for (int i = 0; i < numGroups - 1; i++) {
+            sizes[i] = target;
+        }
+        sizes[numGroups - 1] = numEntries - (numGroups - 1) * target;
+
+        if (numGroups > 1 && sizes[numGroups - 1] < min) {
+            int combined = sizes[numGroups - 2] + sizes[numGroups - 1];
+            if (combined <= max) {
+                sizes = Arrays.copyOf(sizes, numGroups - 1);
+                sizes[numGroups - 2] = combined;
+            } else {
+                sizes[numGroups - 2] = combined - combined / 2;
+                sizes[numGroups - 1] = combined / 2;
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * links node after the last node of a level that is being built
+     * @param level, nodes built so far on this level
+     * @param node, node to append
+     */
+    private void linkToPrevNode(ArrayList<Node> level, Node node) {
+        if (level.size() == 0) return;
+        Node prevNode = level.get(level.size() - 1);
+        prevNode.setNextNode(node);
+        node.setPrevNode(prevNode);
+    }
+
+    /**
+     * inserts a batch of records in key order, keeping a finger on the path to the current leaf instead of
+     * descending from the root for every key
+     * the finger holds each node on the path with the smallest separator to its right, so the next key only climbs
+     * to the nearest ancestor whose range covers it, which for the neighbouring leaf is the shared parent
+     * nodes are allowed to overflow while the finger is on them and are split into as many nodes as needed when it
+     * leaves, pushing all their separators up at once
+     * if every key is larger than every key already in the tree, as in an append load, splits keep the left nodes
+     * full instead of half full, since no later key will land in them
+     * the count and rating sum of the records added under a node on the finger are added to it when the finger
+     * leaves it and passed on to its parent, so aggregates cost one update per node instead of a walk to the root
+     * per record
+     * in concurrent mode the records are inserted one at a time with insertKey, as the finger would keep nodes
+     * overflowing for longer than a single leaf latch covers
+     * @param batch, key and recordBlock pairs in any order, the list is not modified
+     */
+    public void insertBatch(ArrayList<KeyRecordPair> batch) {
+        if (batch.size() == 0) return;
+        ArrayList<KeyRecordPair> sortedPairs = new ArrayList<>(batch);
+        sortedPairs.sort(Comparator.comparingInt(KeyRecordPair::getKey));
+        if (concurrent) {
+            for (KeyRecordPair pair : sortedPairs) {
+                insertKey(pair.getKey(), pair.getRecordBlock());
+            }
+            return;
+        }
+        if (root == null || root.getNumKeys() == 0) {
+            bulkLoad(sortedPairs, 1.0f);
+            return;
+        }
+        boolean append = sortedPairs.get(0).getKey() > getLargestKey();
+
+        // path[d] is the node at depth d on the finger, upper[d] the smallest key that no longer belongs under it
+        int leafDepth = numLevels - 1;
+        Node[] path = new Node[numLevels];
+        long[] upper = new long[numLevels];
+        path[0] = ownRoot();
+        upper[0] = Long.MAX_VALUE;
+        descend(path, upper, 0, sortedPairs.get(0).getKey());
+        // changes to the aggregates of path[d] and its ancestors not yet added to path[d]
+        long[] pendingCount = new long[numLevels];
+        double[] pendingSum = new double[numLevels];
+
+        for (KeyRecordPair pair : sortedPairs) {
+            int key = pair.getKey();
+            if (key >= upper[leafDepth]) {
+                int depth = leafDepth;
+                while (key >= upper[depth]) {
+                    applyPending(path, pendingCount, pendingSum, depth);
+                    splitOverflow(path[depth], (NonLeafNode) path[depth - 1], append);
+                    depth--;
+                }
+                descend(path, upper, depth, key);
+            }
+            LeafNode leafNode = (LeafNode) path[leafDepth];
+            int numKeys = leafNode.getNumKeys();
+            // sorted keys mostly land after the last key of the leaf, or on it
+            int idx;
+            if (numKeys == 0 || key > leafNode.getKey(numKeys - 1)) idx = -numKeys - 1;
+            else if (key == leafNode.getKey(numKeys - 1)) idx = numKeys - 1;
+            else idx = leafNode.findKey(key);
+            if (idx < 0) {
+                idx = -idx - 1;
+                leafNode.insertEntry(idx, key, new PostingList(epoch));
+            }
+            pendingCount[leafDepth] += 1;
+            pendingSum[leafDepth] += leafNode.addRecordBlockDeferred(idx, pair.getRecordBlock());
+        }
+
+        for (int depth = leafDepth; depth > 0; depth--) {
+            applyPending(path, pendingCount, pendingSum, depth);
+            splitOverflow(path[depth], (NonLeafNode) path[depth - 1], append);
+        }
+        applyPending(path, pendingCount, pendingSum, 0);
+        while (root.getNumKeys() > capacity) {
+            NonLeafNode newRoot = newNonLeafNode();
+            newRoot.appendChild(root);
+            root.setParent(newRoot);
+            Node oldRoot = root;
+            root = newRoot;
+            numNodes += 1;
+            numLevels += 1;
+            splitOverflow(oldRoot, newRoot, append);
+        }
+    }
+
+    /**
+     * adds the pending aggregate changes of the node at depth to it and passes them on to its parent on the finger
+     * @param path, nodes on the finger
+     * @param pendingCount, change in number of records not yet added to each node
+     * @param pendingSum, change in sum of average ratings not yet added to each node
+     * @param depth, depth of the node the finger is leaving
+     */
+    private void applyPending(Node[] path, long[] pendingCount, double[] pendingSum, int depth) {
+        path[depth].addToNode(pendingCount[depth], pendingSum[depth]);
+        if (depth > 0) {
+            pendingCount[depth - 1] += pendingCount[depth];
+            pendingSum[depth - 1] += pendingSum[depth];
+        }
+        pendingCount[depth] = 0;
+        pendingSum[depth] = 0;
+    }
+
+    /**
+     * moves the finger below path[depth] down to the leaf that key belongs in, copying nodes a published version
+     * shares
+     * @param path, nodes on the finger
+     * @param upper, exclusive upper bound of the keys under each node on the finger
+     * @param depth, depth of the lowest node on the finger that covers key
+     * @param key, key to move to
+     */
+    private void descend(Node[] path, long[] upper, int depth, int key) {
+        while (path[depth] instanceof NonLeafNode) {
+            NonLeafNode currNode = (NonLeafNode) path[depth];
+            int idx = currNode.upperBound(key);
+            path[depth + 1] = ownChild(currNode, idx);
+            upper[depth + 1] = idx < currNode.getNumKeys() ? currNode.getKey(idx) : upper[depth];
+            depth++;
+        }
+    }
+
+    /**
+     * @return, largest key in the tree, found by following the last child down from the root
+     */
+    private int getLargestKey() {
+        Node node = root;
+        while (node instanceof NonLeafNode) {
+            NonLeafNode currNode = (NonLeafNode) node;
+            node = currNode.getChild(currNode.getNumChildren() - 1);
+        }
+        return node.getKey(node.getNumKeys() - 1);
+    }
+
+    /**
+     * splits a node holding more than capacity keys into as many nodes as needed, the node keeps the first part and
+     * the new nodes are added after it in its parent, which may overflow in turn
+     * @param node, node to split
+     * @param parent, parent of node
+     * @param full, fill the new nodes to capacity, else spread the entries evenly
+     */
+    private void splitOverflow(Node node, NonLeafNode parent, boolean full) {
+        if (node.getNumKeys() <= capacity) return;
+        int idx = parent.indexOfChild(node);
+
+        if (node instanceof LeafNode) {
+            LeafNode leafNode = (LeafNode) node;
+            int[] sizes = splitSizes(leafNode.getNumKeys(), capacity, minLeafKeys, full);
+            // parts are moved off the end, each new node goes right after node so earlier moved ones shift right
+            for (int p = sizes.length - 1; p > 0; p--) {
+                LeafNode newLeafNode = newLeafNode();
+                leafNode.moveEntriesTo(leafNode.getNumKeys() - sizes[p], newLeafNode);
+                LeafNode nextNode = (LeafNode) leafNode.getNextNode();
+                if (nextNode != null) {
+                    nextNode.setPrevNode(newLeafNode);
+                }
+                newLeafNode.setNextNode(nextNode);
+                newLeafNode.setPrevNode(leafNode);
+                leafNode.setNextNode(newLeafNode);
+
+                parent.insertKey(idx, newLeafNode.getKey(0));
+                parent.insertChildAt(idx + 1, newLeafNode);
+                newLeafNode.setParent(parent);
+                numNodes += 1;
+            }
+        } else {
+            NonLeafNode nonLeafNode = (NonLeafNode) node;
+            int[] sizes = splitSizes(nonLeafNode.getNumChildren(), capacity + 1, minNonLeafChildren, full);
+            for (int p = sizes.length - 1; p > 0; p--) {
+                NonLeafNode newNonLeafNode = newNonLeafNode();
+                int childMid = nonLeafNode.getNumChildren() - sizes[p];
+                // the key between the two parts moves up to the parent
+                int key = nonLeafNode.getKey(childMid - 1);
+                nonLeafNode.moveEntriesTo(childMid - 1, childMid, newNonLeafNode);
+                for (int i = 0; i < newNonLeafNode.getNumChildren(); i++)
+                    newNonLeafNode.getChild(i).setParent(newNonLeafNode);
+                if (nonLeafNode.getNextNode() != null)
+                    nonLeafNode.getNextNode().setPrevNode(newNonLeafNode);
+                newNonLeafNode.setPrevNode(nonLeafNode);
+                newNonLeafNode.setNextNode(nonLeafNode.getNextNode());
+                nonLeafNode.setNextNode(newNonLeafNode);
+
+                parent.insertKey(idx, key);
+                parent.insertChildAt(idx + 1, newNonLeafNode);
+                newNonLeafNode.setParent(parent);
+                numNodes += 1;
+            }
+        }
+    }
+
+    /**
+     * @param numEntries, number of keys or children of an overflowing node
+     * @param max, maximum number of entries per node
+     * @param min, minimum number of entries per node
+     * @param full, fill nodes to max with only the last ones smaller, else make all nodes about the same size
+     * @return, number of entries for each node in order
+     */
+    private int[] splitSizes(int numEntries, int max, int min, boolean full) {
+        if (full) return partitionSizes(numEntries, max, min, max);
+        int numGroups = (numEntries + max - 1) / max;
+        int[] sizes = new int[numGroups];
+        for (int i = 0; i < numGroups; i++) {
+            sizes[i] = numEntries / numGroups + (i < numEntries % numGroups ? 1 : 0);
+        }
+        return sizes;
+    }
+
     /**
      * traverses to leafNode and gets all recordBlocks accessed between minKey and maxKey
      * @param minKey, lowest key searching
@@ -273,34 +754,137 @@ public class BPTree {
      */
     public ArrayList<RecordBlock> searchNodes(int minKey, int maxKey) {
         ArrayList<RecordBlock> accessedRecords = new ArrayList<>();
-
-        if (root != null) {
-             LeafNode leafNode = findLeafNode(root, minKey);
-             int i = 0;
-             int currKey = leafNode.getElements().get(0);
-
-             while (currKey <= maxKey) {
-                 if (currKey >= minKey) {
-                     for (RecordBlock rb : leafNode.getRecordBlocks().get(i)) {
-                         accessedRecords.add(rb);
-                     }
-                 }
-
-                 // continue in same node
-                 if (i < leafNode.getElements().size() - 1) {
-                     i += 1;
-                 } else { // else, go to next node
-                     if (leafNode.getNextNode() == null) return accessedRecords;
-                     leafNode = (LeafNode) leafNode.getNextNode();
-                     i = 0;
-                     numNodesAccessed += 1;
-                 }
-                 currKey = leafNode.getElements().get(i);
-             }
+        Iterator<RecordBlock> it = rangeIterator(minKey, maxKey);
+        while (it.hasNext()) {
+            accessedRecords.add(it.next());
         }
         return accessedRecords;
     }
 
+    /**
+     * walks the leaf chain lazily from minKey, so callers can stop early or aggregate without a result list
+     * leaves are counted in numNodesAccessed as the iterator reaches them
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, iterator over recordBlocks with keys between minKey and maxKey in key order
+     */
+    public Iterator<RecordBlock> rangeIterator(int minKey, int maxKey) {
+        if (concurrent) return new OptimisticRangeIterator(minKey, maxKey);
+        return new RangeIterator(minKey, maxKey);
+    }
+
+    /**
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, sequential ordered stream over rangeIterator
+     */
+    public Stream<RecordBlock> rangeStream(int minKey, int maxKey) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rangeIterator(minKey, maxKey),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * cursor over the leaf chain, positioned on key index keyIdx of leafNode and record index recordIdx of that key
+     */
+    private class RangeIterator implements Iterator<RecordBlock> {
+        private int maxKey;
+        private LeafNode leafNode;
+        private int keyIdx;
+        private PostingList records;
+        private int recordIdx;
+
+        RangeIterator(int minKey, int maxKey) {
+            this.maxKey = maxKey;
+            if (root != null && minKey <= maxKey) {
+                leafNode = findLeafNode(root, minKey);
+                keyIdx = leafNode.lowerBound(minKey) - 1;
+                advanceKey();
+            }
+        }
+
+        /**
+         * moves to the next key with records, following the leaf chain, and stops past maxKey
+         */
+        private void advanceKey() {
+            records = null;
+            recordIdx = 0;
+            while (leafNode != null) {
+                keyIdx += 1;
+                if (keyIdx >= leafNode.getNumKeys()) {
+                    leafNode = (LeafNode) leafNode.getNextNode();
+                    keyIdx = -1;
+                    if (leafNode != null) numNodesAccessed += 1;
+                    continue;
+                }
+                if (leafNode.getKey(keyIdx) > maxKey) {
+                    leafNode = null;
+                    return;
+                }
+                if (!leafNode.getPostings(keyIdx).isEmpty()) {
+                    records = leafNode.getPostings(keyIdx);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return records != null;
+        }
+
+        public RecordBlock next() {
+            if (records == null) throw new NoSuchElementException();
+            RecordBlock rb = db.getRecordBlock(records.get(recordIdx++));
+            if (recordIdx == records.size()) advanceKey();
+            return rb;
+        }
+    }
+
+    /**
+     * counts records with keys between minKey and maxKey and sums their average ratings
+     * only the paths to minKey and maxKey are visited, other subtrees are taken from their aggregates
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, count and rating sum of the records in range
+     */
+    public RangeAggregate aggregateRange(int minKey, int maxKey) {
+        if (concurrent) return aggregateRangeOptimistic(minKey, maxKey);
+        numNodesAccessed = 0;
+        if (root == null || minKey > maxKey) return new RangeAggregate(0, 0);
+        RangeAggregate upTo = aggregateBefore(maxKey, true);
+        RangeAggregate below = aggregateBefore(minKey, false);
+        return new RangeAggregate(upTo.getCount() - below.getCount(), upTo.getRatingSum() - below.getRatingSum());
+    }
+
+    /**
+     * sums the aggregates of everything left of the path to key
+     * @param key, key to descend to
+     * @param inclusive, whether records with key itself are included
+     * @return, count and rating sum of records with keys < key, or <= key if inclusive
+     */
+    private RangeAggregate aggregateBefore(int key, boolean inclusive) {
+        long count = 0;
+        double ratingSum = 0;
+        Node node = root;
+        while (node instanceof NonLeafNode) {
+            numNodesAccessed += 1;
+            NonLeafNode currNode = (NonLeafNode) node;
+            int idx = currNode.upperBound(key);
+            for (int i = 0; i < idx; i++) {
+                count += currNode.getChild(i).getSubtreeCount();
+                ratingSum += currNode.getChild(i).getSubtreeRatingSum();
+            }
+            node = currNode.getChild(idx);
+        }
+        numNodesAccessed += 1;
+        LeafNode leafNode = (LeafNode) node;
+        int end = inclusive ? leafNode.upperBound(key) : leafNode.lowerBound(key);
+        for (int i = 0; i < end; i++) {
+            count += leafNode.getPostings(i).size();
+            ratingSum += leafNode.getRatingSum(i);
+        }
+        return new RangeAggregate(count, ratingSum);
+    }
+
     /**
      * finds leafNode containing key and increments numNodesAccessed on the way there
      * @param node, starting node
@@ -312,283 +896,702 @@ public class BPTree {
         while (node instanceof NonLeafNode) {
             numNodesAccessed += 1;
             NonLeafNode currNode = (NonLeafNode) node;
-            Node nextNode = null;
-            int i;
+            node = currNode.getChild(currNode.upperBound(key));
+        }
+        numNodesAccessed += 1;
+        return (LeafNode) node;
+    }
+
+    /**
+     * deletes key from the tree, its records are left in the memory pool
+     * in concurrent mode a delete only latches its leaf, unless the leaf would be left underfull
+     * @param key, key to delete
+     */
+    public void findAndDeleteKey(int key) {
+        if (concurrent && deleteFromLeaf(key)) return;
+        long stamp = lockStructure();
+        try {
+            numNodesAccessed = 0;
+            removeRange(key, key);
+        } finally {
+            unlockStructure(stamp);
+        }
+    }
 
-            for (i = 0; i < currNode.getElements().size(); i++) {
-                if (key < currNode.getElements().get(i)) {
-                    nextNode = currNode.getChildren().get(i);
-                    break;
+    /**
+     * deletes key from the tree and its records from the data blocks its entry points to, so only the blocks holding
+     * those records are read instead of every block in the pool
+     * @param key, key to delete
+     * @return, number of records deleted, index nodes accessed and data blocks accessed
+     */
+    public DeleteResult deleteRecords(int key) {
+        return deleteRange(key, key);
+    }
+
+    /**
+     * deletes every key in [minKey, maxKey] from the tree and their records from the memory pool
+     * leaves and subtrees wholly inside the range are unlinked from their parents in one pass without visiting their
+     * keys again, only the leaves holding minKey and maxKey lose entries one at a time
+     * only nodes on the paths to those two leaves can underflow, so only they are merged with or refilled from a
+     * sibling afterwards, and the records are deleted from the pool in record id order once the tree is done
+     * @param minKey, lowest key to delete
+     * @param maxKey, highest key to delete
+     * @return, number of records deleted, index nodes accessed and data blocks accessed
+     */
+    public DeleteResult deleteRange(int minKey, int maxKey) {
+        ArrayList<PostingList> removed;
+        long stamp = lockStructure();
+        try {
+            numNodesAccessed = 0;
+            removed = removeRange(minKey, maxKey);
+        } finally {
+            unlockStructure(stamp);
+        }
+        int numRecords = 0;
+        for (PostingList records : removed) {
+            numRecords += records.size();
+        }
+        if (numRecords == 0) return new DeleteResult(0, getNumNodesAccessed(), 0);
+        long[] rids = new long[numRecords];
+        int n = 0;
+        for (PostingList records : removed) {
+            for (int i = 0; i < records.size(); i++) {
+                rids[n++] = records.get(i);
+            }
+        }
+        db.deleteRecords(rids, numRecords);
+        return new DeleteResult(numRecords, getNumNodesAccessed(), db.getNumBlocksAccessed());
+    }
+
+    /**
+     * removes every key in [minKey, maxKey] from the tree, the tree part of deleteRange
+     * @param minKey, lowest key to remove
+     * @param maxKey, highest key to remove
+     * @return, postings of the removed keys
+     */
+    private ArrayList<PostingList> removeRange(int minKey, int maxKey) {
+        ArrayList<PostingList> removed = new ArrayList<>();
+        if (root == null || minKey > maxKey) return removed;
+        int leafDepth = numLevels - 1;
+        Node[] leftPath = new Node[numLevels];
+        int[] leftIdx = new int[numLevels];
+        Node[] rightPath = new Node[numLevels];
+        int[] rightIdx = new int[numLevels];
+        findPath(minKey, leftPath, leftIdx);
+        findPath(maxKey, rightPath, rightIdx);
+
+        for (int d = 0; d < leafDepth; d++) {
+            NonLeafNode left = (NonLeafNode) leftPath[d];
+            NonLeafNode right = (NonLeafNode) rightPath[d];
+            numNodesAccessed += left == right ? 1 : 2;
+            if (left == right) {
+                if (rightIdx[d] > leftIdx[d] + 1) lockNode(left);
+                // the paths split here, children between them and all but the last key between them go
+                for (int i = rightIdx[d] - 1; i > leftIdx[d]; i--) {
+                    dropSubtree(left.removeChildAt(i), removed);
+                }
+                for (int i = rightIdx[d] - 2; i >= leftIdx[d]; i--) {
+                    left.removeKey(i);
+                }
+            } else {
+                lockNode(left);
+                lockNode(right);
+                // below the split the left path keeps everything before it, the right path everything after it
+                for (int i = left.getNumChildren() - 1; i > leftIdx[d]; i--) {
+                    dropSubtree(left.removeChildAt(i), removed);
+                }
+                for (int i = left.getNumKeys() - 1; i >= leftIdx[d]; i--) {
+                    left.removeKey(i);
+                }
+                for (int i = rightIdx[d] - 1; i >= 0; i--) {
+                    dropSubtree(right.removeChildAt(i), removed);
+                    right.removeKey(i);
                 }
             }
-            if (nextNode == null) {
-                nextNode = currNode.getChildren().get(i);
+        }
+
+        LeafNode leftLeaf = (LeafNode) leftPath[leafDepth];
+        LeafNode rightLeaf = (LeafNode) rightPath[leafDepth];
+        lockNode(leftLeaf);
+        lockNode(rightLeaf);
+        if (leftLeaf == rightLeaf) {
+            numNodesAccessed += 1;
+            removeEntries(leftLeaf, leftLeaf.lowerBound(minKey), leftLeaf.upperBound(maxKey), removed);
+        } else {
+            numNodesAccessed += 2;
+            removeEntries(leftLeaf, leftLeaf.lowerBound(minKey), leftLeaf.getNumKeys(), removed);
+            removeEntries(rightLeaf, 0, rightLeaf.upperBound(maxKey), removed);
+        }
+        // dropped nodes leave a gap in the sibling links of every level below the split
+        for (int d = 1; d <= leafDepth; d++) {
+            if (leftPath[d] != rightPath[d]) {
+                leftPath[d].setNextNode(rightPath[d]);
+                rightPath[d].setPrevNode(leftPath[d]);
             }
-            node = nextNode;
         }
+
+        boolean changed = true;
+        while (changed) {
+            changed = rebalancePath(minKey);
+            changed = rebalancePath(maxKey) || changed;
+        }
+        return removed;
+    }
+
+    /**
+     * fills path with the nodes from the root to the leaf key belongs in, copying nodes a published version shares,
+     * as every caller changes them
+     * @param key, key to look for
+     * @param path, receives the node at each depth
+     * @param childIdx, receives the index of path[d + 1] in path[d]
+     */
+    private void findPath(int key, Node[] path, int[] childIdx) {
+        path[0] = ownRoot();
+        for (int d = 0; path[d] instanceof NonLeafNode; d++) {
+            NonLeafNode currNode = (NonLeafNode) path[d];
+            childIdx[d] = currNode.upperBound(key);
+            path[d + 1] = ownChild(currNode, childIdx[d]);
+        }
+    }
+
+    /**
+     * removes the entries [from, to) of a leaf
+     * @param leafNode, leaf to remove from
+     * @param from, first index to remove
+     * @param to, index after the last one to remove
+     * @param removed, receives the postings of the removed entries
+     */
+    private void removeEntries(LeafNode leafNode, int from, int to, ArrayList<PostingList> removed) {
+        for (int i = to - 1; i >= from; i--) {
+            removed.add(leafNode.removeEntry(i));
+        }
+    }
+
+    /**
+     * collects the postings of a subtree that was unlinked from the tree and counts its nodes out of the tree
+     * @param node, root of the unlinked subtree
+     * @param removed, receives the postings of every leaf in the subtree
+     */
+    private void dropSubtree(Node node, ArrayList<PostingList> removed) {
+        lockNode(node);
+        numNodes -= 1;
         numNodesAccessed += 1;
-        return (LeafNode) node;
+        if (node instanceof LeafNode) {
+            LeafNode leafNode = (LeafNode) node;
+            for (int i = 0; i < leafNode.getNumKeys(); i++) {
+                removed.add(leafNode.getPostings(i));
+            }
+            return;
+        }
+        NonLeafNode nonLeafNode = (NonLeafNode) node;
+        for (int i = 0; i < nonLeafNode.getNumChildren(); i++) {
+            dropSubtree(nonLeafNode.getChild(i), removed);
+        }
     }
 
-    public void findAndDeleteKey(int key) {
-        LeafNode node = findLeafNode(root, key);
-        deleteInLeaf(node, key);
-        return;
+    /**
+     * fixes underfull nodes on the path to key from the bottom up, then removes roots left with a single child
+     * a node whose parent has no other child is left for a later call, once the parent has been merged
+     * @param key, key whose path to fix
+     * @return, whether anything changed
+     */
+    private boolean rebalancePath(int key) {
+        boolean changed = false;
+        Node[] path = new Node[numLevels];
+        findPath(key, path, new int[numLevels]);
+        for (int d = numLevels - 1; d > 0; d--) {
+            if (isUnderfull(path[d]) && rebalance(path[d], (NonLeafNode) path[d - 1])) {
+                changed = true;
+            }
+        }
+        while (root instanceof NonLeafNode && ((NonLeafNode) root).getNumChildren() == 1) {
+            lockNode(root);
+            root = ((NonLeafNode) root).getChild(0);
+            root.setParent(null);
+            numNodes -= 1;
+            numLevels -= 1;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean isUnderfull(Node node) {
+        if (node instanceof LeafNode) return node.getNumKeys() < minLeafKeys;
+        return ((NonLeafNode) node).getNumChildren() < minNonLeafChildren;
     }
 
-    private void deleteInLeaf(Node node, int key) {
-        int i;
-        LeafNode currNode = (LeafNode) node;
-        int prevFirst = currNode.getElements().get(0);
-        for (i = 0; i < currNode.getElements().size(); i++) {
-            if (key == currNode.getElements().get(i)) {
-                currNode.getElements().remove(i);
-                currNode.getRecordBlocks().remove(i);
-                break;
-            }
-        }
-        // if still enough keys, only update if deleted index == 0, no recursive delete
-        if (currNode.getElements().size() >= minLeafKeys) {
-            if (i == 0) {
-                int newKey = currNode.getElements().get(0);
-                updateParent(key, newKey);
-            }
-        } else { // else, check if can borrow, if not join and recursively delete
-            LeafNode prev = (LeafNode) currNode.getPrevNode();
-            LeafNode next = (LeafNode) currNode.getNextNode();
-            if (prev == null && next == null) return; // no neighbours
-            boolean borrowed = false;
-            if (prev != null) {
-                // try to borrow from left neighbour
-                if (prev.getElements().size() > minLeafKeys) {
-                    int prevNumElements = prev.getElements().size();
-                    int borrowedKey = prev.getElements().remove(prevNumElements - 1);
-                    ArrayList<RecordBlock> borrowedRecord = prev.getRecordBlocks().remove(prevNumElements - 1);
-                    currNode.getElements().add(0, borrowedKey);
-                    currNode.getRecordBlocks().add(0, borrowedRecord);
-                    updateParent(prevFirst, borrowedKey);
-                    borrowed = true;
+    /**
+     * merges an underfull node with a sibling if both fit in one node, else evens out their entries
+     * @param node, underfull node
+     * @param parent, parent of node
+     * @return, false if node has no sibling to work with
+     */
+    private boolean rebalance(Node node, NonLeafNode parent) {
+        if (parent.getNumChildren() < 2) return false;
+        int idx = parent.indexOfChild(node);
+        // sepIdx is the key in parent between left and right
+        int sepIdx = idx > 0 ? idx - 1 : 0;
+        Node left = ownChild(parent, sepIdx);
+        Node right = ownChild(parent, sepIdx + 1);
+        lockNode(parent);
+        lockNode(left);
+        lockNode(right);
+
+        if (node instanceof LeafNode) {
+            LeafNode leftLeaf = (LeafNode) left;
+            LeafNode rightLeaf = (LeafNode) right;
+            int total = leftLeaf.getNumKeys() + rightLeaf.getNumKeys();
+            if (total <= capacity) {
+                while (rightLeaf.getNumKeys() > 0) {
+                    int key = rightLeaf.getKey(0);
+                    leftLeaf.appendEntry(key, rightLeaf.removeEntry(0));
                 }
-            }
-            else if (next != null) {
-                // try to borrow from right neighbour
-                if (next.getElements().size() > minLeafKeys) {
-                    int borrowedKey = next.getElements().remove(0);
-                    ArrayList<RecordBlock> borrowedRecord = next.getRecordBlocks().remove(0);
-                    currNode.getElements().add(borrowedKey);
-                    currNode.getRecordBlocks().add(borrowedRecord);
-                    updateParent(borrowedKey, next.getElements().get(0));
-                    borrowed = true;
+            } else {
+                int leftSize = (total + 1) / 2;
+                while (leftLeaf.getNumKeys() > leftSize) {
+                    int last = leftLeaf.getNumKeys() - 1;
+                    int key = leftLeaf.getKey(last);
+                    rightLeaf.insertEntry(0, key, leftLeaf.removeEntry(last));
+                }
+                while (leftLeaf.getNumKeys() < leftSize) {
+                    int key = rightLeaf.getKey(0);
+                    leftLeaf.appendEntry(key, rightLeaf.removeEntry(0));
                 }
+                parent.setKey(sepIdx, rightLeaf.getKey(0));
+                return true;
             }
-            if (!borrowed) { // join and recursively delete
-                if (prev != null) {
-                    ArrayList<Integer> currElements = currNode.getElements();
-                    ArrayList<ArrayList<RecordBlock>> currRecords = currNode.getRecordBlocks();
-                    for (int j = 0; j < currElements.size(); j++) {
-                        prev.getElements().add(currElements.get(j));
-                        prev.getRecordBlocks().add(currRecords.get(j));
-                    }
-                    prev.setNextNode(currNode.getNextNode());
-                    if (currNode.getNextNode() != null)
-                        currNode.getNextNode().setPrevNode(prev);
-                    // due to time constraints, we will just assign the node to the prev node of parent if parent is going to be deleted
-                    if (!(currNode.getParent().equals(root)) && (currNode.getParent().getElements().size() == 1)) {
-                        if (currNode.getParent().getChildren().contains(prev)) {
-                            NonLeafNode newParent = (NonLeafNode) currNode.getParent().getPrevNode();
-                            newParent.getElements().add(prev.getElements().get(0));
-                            newParent.getChildren().add(prev);
-                            prev.setParent(newParent);
-                            if (newParent.getElements().size() > capacity) {
-                                KeyNodePair newPair = createNonLeafNode(newParent);
-                            }
-                        }
-                    }
-                    deleteFromParent(currNode, prevFirst);
+        } else {
+            NonLeafNode leftNode = (NonLeafNode) left;
+            NonLeafNode rightNode = (NonLeafNode) right;
+            int total = leftNode.getNumChildren() + rightNode.getNumChildren();
+            if (total <= capacity + 1) {
+                // the separator comes down between the two nodes' keys
+                leftNode.appendKey(parent.getKey(sepIdx));
+                for (int i = 0; i < rightNode.getNumKeys(); i++) {
+                    leftNode.appendKey(rightNode.getKey(i));
                 }
-                else if (next != null) { // join and recursively delete
-                    LeafNode nextNode = (LeafNode) currNode.getNextNode();
-                    ArrayList<Integer> nextElements = nextNode.getElements();
-                    ArrayList<ArrayList<RecordBlock>> nextRecords = nextNode.getRecordBlocks();
-                    for (int j = 0; j < nextElements.size(); j++) {
-                        currNode.getElements().add(nextElements.get(j));
-                        currNode.getRecordBlocks().add(nextRecords.get(j));
-                    }
-                    currNode.setNextNode(nextNode.getNextNode());
-                    if (nextNode.getNextNode() != null)
-                        nextNode.getNextNode().setPrevNode(currNode);
-                    if (!(currNode.getParent().equals(root)) && (currNode.getParent().getElements().size() == 1)) {
-                        NonLeafNode newParent = (NonLeafNode) currNode.getParent().getNextNode();
-                        int lowest = getSmallestKeyFromChildren(newParent);
-                        newParent.getElements().add(0, lowest);
-                        newParent.getChildren().add(0, next);
-                        if (newParent.getElements().size() > capacity) {
-                            KeyNodePair newPair = createNonLeafNode(newParent);
-                        }
-                    }
-                    key = nextNode.getElements().get(0);
-                    deleteFromParent(nextNode, key);
+                while (rightNode.getNumChildren() > 0) {
+                    Node child = rightNode.removeChildAt(0);
+                    leftNode.appendChild(child);
+                    child.setParent(leftNode);
+                }
+            } else {
+                int leftSize = (total + 1) / 2;
+                // children rotate through the parent, taking the separator with them
+                while (leftNode.getNumChildren() > leftSize) {
+                    Node child = leftNode.removeChildAt(leftNode.getNumChildren() - 1);
+                    int key = leftNode.removeKey(leftNode.getNumKeys() - 1);
+                    rightNode.insertChildAt(0, child);
+                    rightNode.insertKey(0, parent.getKey(sepIdx));
+                    child.setParent(rightNode);
+                    parent.setKey(sepIdx, key);
+                }
+                while (leftNode.getNumChildren() < leftSize) {
+                    Node child = rightNode.removeChildAt(0);
+                    int key = rightNode.removeKey(0);
+                    leftNode.appendChild(child);
+                    leftNode.appendKey(parent.getKey(sepIdx));
+                    child.setParent(leftNode);
+                    parent.setKey(sepIdx, key);
                 }
+                return true;
             }
         }
+
+        // right was merged into left
+        left.setNextNode(right.getNextNode());
+        if (right.getNextNode() != null)
+            right.getNextNode().setPrevNode(left);
+        parent.removeKey(sepIdx);
+        parent.removeChildAt(sepIdx + 1);
+        numNodes -= 1;
+        return true;
     }
 
+    /**
+     * inserts into the leaf holding key with the structure lock held shared and only that leaf latched
+     * @param key, key to insert
+     * @param recordBlock, the record and block which it is in
+     * @return, false if the tree is empty or key is new and its leaf is full, so the insert has to go through insert
+     */
+    private boolean insertIntoLeaf(int key, RecordBlock recordBlock) {
+        long stamp = structureLock.readLock();
+        try {
+            // nodes above the leaves only change under the exclusive lock, so the descent needs no validation
+            Node node = root;
+            if (node == null) return false;
+            while (node instanceof NonLeafNode) {
+                NonLeafNode currNode = (NonLeafNode) node;
+                node = currNode.getChild(currNode.upperBound(key));
+            }
+            LeafNode leafNode = (LeafNode) node;
+            long leafStamp = leafNode.getLatch().writeLock();
+            try {
+                int idx = leafNode.findKey(key);
+                if (idx < 0) {
+                    if (leafNode.getNumKeys() >= capacity) return false;
+                    idx = -idx - 1;
+                    leafNode.insertEntry(idx, key, new PostingList(epoch));
+                }
+                float rating = leafNode.addRecordBlockDeferred(idx, recordBlock);
+                leafNode.addToSubtreeAtomic(1, rating);
+                return true;
+            } finally {
+                leafNode.getLatch().unlockWrite(leafStamp);
+            }
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * deletes key from its leaf with the structure lock held shared and only that leaf latched
+     * @param key, key to delete
+     * @return, false if the leaf would be left underfull, so the delete has to go through removeRange
+     */
+    private boolean deleteFromLeaf(int key) {
+        int[] accessed = threadNodesAccessed.get();
+        accessed[0] = 0;
+        long stamp = structureLock.readLock();
+        try {
+            Node node = root;
+            if (node == null) return true;
+            while (node instanceof NonLeafNode) {
+                accessed[0] += 1;
+                NonLeafNode currNode = (NonLeafNode) node;
+                node = currNode.getChild(currNode.upperBound(key));
+            }
+            accessed[0] += 1;
+            LeafNode leafNode = (LeafNode) node;
+            long leafStamp = leafNode.getLatch().writeLock();
+            try {
+                int idx = leafNode.findKey(key);
+                if (idx < 0) return true;
+                if (leafNode != root && leafNode.getNumKeys() <= minLeafKeys) return false;
+                PostingList entry = leafNode.removeEntryDeferred(idx);
+                leafNode.addToSubtreeAtomic(-entry.size(), -entry.getRatingSum());
+                return true;
+            } finally {
+                leafNode.getLatch().unlockWrite(leafStamp);
+            }
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
 
-    private void mergeOrBorrowNonLeaf(NonLeafNode node) {
-        NonLeafNode currNode = (NonLeafNode) node;
-        NonLeafNode prev = (NonLeafNode) currNode.getPrevNode();
-        NonLeafNode next = (NonLeafNode) currNode.getNextNode();
-        if (prev == null && next == null) return; // no neighbours
-        boolean merged = false;
-        // try merge first
-        if (prev != null && (prev.getElements().size() + node.getChildren().size()) <= capacity) {
-            ArrayList<Integer> currElements = currNode.getElements();
-            ArrayList<Node> currChildren = currNode.getChildren();
-            for (int j = 0; j < currElements.size(); j++) {
-                prev.getElements().add(currElements.get(j));
-                prev.getChildren().add(currChildren.get(j));
-            }
-            prev.getChildren().add(currChildren.get(currChildren.size() - 1));
-            prev.setNextNode(currNode.getNextNode());
-            if (currNode.getNextNode() != null)
-                currNode.getNextNode().setPrevNode(prev);
-            int key = getSmallestKeyFromChildren(currNode);
-            deleteFromParent(currNode, key);
-            merged = true;
-        }
-        else if (next != null && (next.getElements().size() + node.getChildren().size()) <= capacity) {
-            NonLeafNode nextNode = (NonLeafNode) currNode.getNextNode();
-            ArrayList<Integer> nextElements = nextNode.getElements();
-            ArrayList<Node> nextChildren = nextNode.getChildren();
-            for (int j = 0; j < nextElements.size(); j++) {
-                currNode.getElements().add(nextElements.get(j));
-                currNode.getChildren().add(nextChildren.get(j));
-            }
-            currNode.getChildren().add(nextChildren.get(nextChildren.size() - 1));
-            currNode.setNextNode(nextNode.getNextNode());
-            if (nextNode.getNextNode() != null)
-                nextNode.getNextNode().setPrevNode(currNode);
-            int key = getSmallestKeyFromChildren(currNode);
-            deleteFromParent(currNode, key);
-            currNode.setParent(nextNode.getParent());
-            updateParent(getSmallestKeyFromChildren(nextNode), key);
-            merged = true;
-        }
-        if (!merged) {
-            int difference = minNonLeafKeys - currNode.getElements().size();
-            if (prev != null) {
-                int oldKey = currNode.getElements().get(0);
-                // just assuming prev has sufficient to lend currNode and maintain enough keys
-                int prevNumElements = prev.getElements().size();
-                currNode.getElements().add(0, getSmallestKeyFromChildren(currNode));
-                for (int i = 0; i < difference; i++) {
-                    currNode.getElements().add(0, prev.getElements().remove(prevNumElements - 1 - i));
-                    currNode.getChildren().add(0, prev.getChildren().remove(prevNumElements - i));
+    /**
+     * descends to the leaf holding key without latching anything, for readers in concurrent mode
+     * each child's stamp is taken before its parent is validated, so a child is only followed if its parent did not
+     * change while it was read, and the descent restarts from the root otherwise
+     * restarts yield rather than spin, as the writer holding the latch may be waiting for this thread's core
+     * @param key, key to look for
+     * @param accessed, incremented by the nodes on the path to the leaf
+     * @param leafStamp, receives the optimistic stamp of the leaf, to validate what is read from it
+     * @return, leaf which contains key, or null if the tree is empty
+     */
+    private LeafNode findLeafOptimistic(int key, int[] accessed, long[] leafStamp) {
+        while (true) {
+            Node node = root;
+            if (node == null) return null;
+            long stamp = node.getLatch().tryOptimisticRead();
+            int numAccessed = 1;
+            // a root that was replaced is latched by the change that replaced it
+            if (stamp != 0 && node == root) {
+                try {
+                    while (node instanceof NonLeafNode) {
+                        NonLeafNode currNode = (NonLeafNode) node;
+                        Node child = currNode.getChild(currNode.upperBound(key));
+                        long childStamp = child.getLatch().tryOptimisticRead();
+                        if (childStamp == 0 || !currNode.getLatch().validate(stamp)) break;
+                        node = child;
+                        stamp = childStamp;
+                        numAccessed += 1;
+                    }
+                } catch (RuntimeException e) {
+                    // read the node halfway through a change, its stamp no longer validates
+                    node = null;
                 }
-                currNode.getElements().remove(0);
-                int newKey = currNode.getElements().get(0);
-                updateParent(oldKey, newKey);
-            }
-            else if (next != null) {
-                // try to borrow from right neighbour
-                int oldKey = next.getElements().get(0);
-                // just assuming prev has sufficient to lend currNode and maintain enough keys
-                int nextNumElements = next.getElements().size();
-                currNode.getElements().add(getSmallestKeyFromChildren(next));
-                currNode.getChildren().add(next.getChildren().get(0));
-                for (int i = 0; i < difference - 1; i++) {
-                    currNode.getElements().add(next.getElements().remove(i));
-                    currNode.getChildren().add(next.getChildren().remove(i));
+                if (node instanceof LeafNode) {
+                    accessed[0] += numAccessed;
+                    leafStamp[0] = stamp;
+                    return (LeafNode) node;
                 }
-                next.getElements().remove(0);
-                int newKey = next.getElements().get(0);
-                updateParent(oldKey, newKey);
             }
+            Thread.yield();
         }
     }
 
-    private void deleteFromParent(Node node, int key) {
-        NonLeafNode parentNode = (NonLeafNode) node.getParent();
-        if (key < parentNode.getElements().get(0)) {
-            if (parentNode.getElements().size() == 1) {
-                if (parentNode.getChildren().get(0).getElements().contains(key)) {
-                    deleteFromParent(parentNode, key);
-                } else {
-                    mergeOrBorrowNonLeaf(parentNode);
-                }
-                return;
+    /**
+     * rangeIterator for concurrent mode, copies the record ids of one key at a time out of the leaf and only hands
+     * them out once the leaf's stamp validates, re-descending to the next unread key if the leaf changed meanwhile
+     */
+    private class OptimisticRangeIterator implements Iterator<RecordBlock> {
+        private int maxKey;
+        private int[] accessed;
+        private LeafNode leafNode;
+        private long[] leafStamp;
+        // smallest key not read yet, a long so maxKey = Integer.MAX_VALUE does not wrap around
+        private long nextKey;
+        private long[] records;
+        private int numRecords;
+        private int recordIdx;
+
+        OptimisticRangeIterator(int minKey, int maxKey) {
+            this.maxKey = maxKey;
+            this.accessed = threadNodesAccessed.get();
+            this.accessed[0] = 0;
+            this.leafStamp = new long[1];
+            this.nextKey = minKey;
+            this.records = new long[16];
+            if (minKey <= maxKey) {
+                leafNode = findLeafOptimistic(minKey, accessed, leafStamp);
+                advanceKey();
             }
-            int oldKey = parentNode.getElements().get(0);
-            parentNode.getElements().remove(0);
-            parentNode.getChildren().remove(0);
-            updateParent(oldKey, parentNode.getElements().get(0));
-        } else {
-            for (int i = 0; i < parentNode.getElements().size(); i++) {
-                if (key == parentNode.getElements().get(i)) {
-                    parentNode.getElements().remove(i);
-                    parentNode.getChildren().remove(i + 1);
-                    break;
+        }
+
+        /**
+         * copies the records of the next key with records into the buffer, and stops past maxKey
+         */
+        private void advanceKey() {
+            numRecords = 0;
+            recordIdx = 0;
+            while (leafNode != null && nextKey <= maxKey) {
+                StampedLock latch = leafNode.getLatch();
+                try {
+                    int idx = leafNode.lowerBound((int) nextKey);
+                    if (idx < leafNode.getNumKeys()) {
+                        int key = leafNode.getKey(idx);
+                        PostingList postings = leafNode.getPostings(idx);
+                        int size = postings.size();
+                        if (records.length < size) records = new long[Math.max(size, records.length * 2)];
+                        size = postings.copyTo(records);
+                        if (latch.validate(leafStamp[0])) {
+                            if (key > maxKey) break;
+                            nextKey = key + 1L;
+                            if (size > 0) {
+                                numRecords = size;
+                                return;
+                            }
+                            continue;
+                        }
+                    } else {
+                        LeafNode next = (LeafNode) leafNode.getNextNode();
+                        long nextStamp = next == null ? 0 : next.getLatch().tryOptimisticRead();
+                        if (latch.validate(leafStamp[0]) && (next == null || nextStamp != 0)) {
+                            if (next != null) accessed[0] += 1;
+                            leafNode = next;
+                            leafStamp[0] = nextStamp;
+                            continue;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // read the leaf halfway through a change, its stamp no longer validates
                 }
+                leafNode = findLeafOptimistic((int) nextKey, accessed, leafStamp);
             }
+            leafNode = null;
+        }
+
+        public boolean hasNext() {
+            return recordIdx < numRecords;
+        }
+
+        public RecordBlock next() {
+            if (recordIdx >= numRecords) throw new NoSuchElementException();
+            RecordBlock rb = db.getRecordBlock(records[recordIdx++]);
+            if (recordIdx == numRecords) advanceKey();
+            return rb;
         }
-        if (parentNode.equals(root)) {
-            if (parentNode.getElements().size() == 0) {
-                if (parentNode.getChildren().size() > 0) {
-                    root = parentNode.getChildren().get(0);
+    }
+
+    /**
+     * aggregateRange for concurrent mode, retried until no split or merge happened while it ran
+     * instead of subtracting the records before minKey from those up to maxKey, which writers running between the two
+     * descents could make negative, it adds up the subtrees between the two paths, so every record is counted at most
+     * once and records written meanwhile by writers that stay within a leaf are counted or not
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, count and rating sum of the records in range
+     */
+    private RangeAggregate aggregateRangeOptimistic(int minKey, int maxKey) {
+        int[] accessed = threadNodesAccessed.get();
+        while (true) {
+            accessed[0] = 0;
+            Node node = root;
+            if (node == null || minKey > maxKey) return new RangeAggregate(0, 0);
+            long stamp = structureLock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    RangeAggregate aggregate = aggregateBetween(node, minKey, maxKey, accessed);
+                    if (aggregate != null && structureLock.validate(stamp)) return aggregate;
+                } catch (RuntimeException e) {
+                    // read a node halfway through a split or merge, the structure stamp no longer validates
                 }
             }
-            return;
+            Thread.yield();
         }
-        if (parentNode.getElements().size() < minNonLeafKeys) {
-            if (parentNode.getElements().size() == 0) {
-                key = getSmallestKeyFromChildren(parentNode);
-                deleteFromParent(parentNode, key);
-            } else
-                mergeOrBorrowNonLeaf(parentNode);
+    }
+
+    /**
+     * sums the records between the paths to minKey and maxKey, the caller validates the nodes above the leaves with
+     * the structure lock
+     * @param node, root of the tree
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @param accessed, incremented by the nodes on the two paths
+     * @return, count and rating sum of the records in range, or null if one of the two leaves changed
+     */
+    private RangeAggregate aggregateBetween(Node node, int minKey, int maxKey, int[] accessed) {
+        long count = 0;
+        double ratingSum = 0;
+        Node left = node;
+        Node right = node;
+        // above the split the children strictly between the two paths are in range
+        while (left == right && left instanceof NonLeafNode) {
+            accessed[0] += 1;
+            NonLeafNode currNode = (NonLeafNode) left;
+            int leftIdx = currNode.upperBound(minKey);
+            int rightIdx = currNode.upperBound(maxKey);
+            for (int i = leftIdx + 1; i < rightIdx; i++) {
+                count += currNode.getChild(i).getSubtreeCount();
+                ratingSum += currNode.getChild(i).getSubtreeRatingSum();
+            }
+            left = currNode.getChild(leftIdx);
+            right = currNode.getChild(rightIdx);
         }
-        return;
+        // below it the children after the left path and before the right path are
+        while (left instanceof NonLeafNode) {
+            accessed[0] += 2;
+            NonLeafNode leftNode = (NonLeafNode) left;
+            NonLeafNode rightNode = (NonLeafNode) right;
+            int leftIdx = leftNode.upperBound(minKey);
+            for (int i = leftIdx + 1; i < leftNode.getNumChildren(); i++) {
+                count += leftNode.getChild(i).getSubtreeCount();
+                ratingSum += leftNode.getChild(i).getSubtreeRatingSum();
+            }
+            int rightIdx = rightNode.upperBound(maxKey);
+            for (int i = 0; i < rightIdx; i++) {
+                count += rightNode.getChild(i).getSubtreeCount();
+                ratingSum += rightNode.getChild(i).getSubtreeRatingSum();
+            }
+            left = leftNode.getChild(leftIdx);
+            right = rightNode.getChild(rightIdx);
+        }
+
+        LeafNode leftLeaf = (LeafNode) left;
+        LeafNode rightLeaf = (LeafNode) right;
+        long leftStamp = leftLeaf.getLatch().tryOptimisticRead();
+        long rightStamp = rightLeaf.getLatch().tryOptimisticRead();
+        int from = leftLeaf.lowerBound(minKey);
+        int to = leftLeaf == rightLeaf ? leftLeaf.upperBound(maxKey) : leftLeaf.getNumKeys();
+        for (int i = from; i < to; i++) {
+            count += leftLeaf.getPostings(i).size();
+            ratingSum += leftLeaf.getRatingSum(i);
+        }
+        if (leftLeaf != rightLeaf) {
+            accessed[0] += 2;
+            to = rightLeaf.upperBound(maxKey);
+            for (int i = 0; i < to; i++) {
+                count += rightLeaf.getPostings(i).size();
+                ratingSum += rightLeaf.getRatingSum(i);
+            }
+        } else {
+            accessed[0] += 1;
+        }
+        if (leftStamp == 0 || rightStamp == 0) return null;
+        if (!leftLeaf.getLatch().validate(leftStamp) || !rightLeaf.getLatch().validate(rightStamp)) return null;
+        return new RangeAggregate(count, ratingSum);
     }
 
-    private int getSmallestKeyFromChildren(Node currNode) {
-        Node tempNode = currNode;
-        while (tempNode instanceof NonLeafNode) {
-            NonLeafNode tempNode2 = (NonLeafNode) tempNode;
-            Node nextNode = tempNode2.getChildren().get(0);
-            tempNode = nextNode;
+    /**
+     * points the entry of a record moved by MemoryPool.compact at its new location
+     * @param key, key of the record
+     * @param oldRid, record id before the move
+     * @param newRid, record id after the move
+     * @return, whether the record was found
+     */
+    public boolean relocate(int key, long oldRid, long newRid) {
+        long stamp = lockStructure();
+        try {
+            LeafNode leafNode = ownLeaf(key);
+            int idx = leafNode.findKey(key);
+            if (idx < 0) return false;
+            PostingList records = leafNode.getOwnedPostings(idx);
+            int i = records.indexOf(oldRid);
+            if (i < 0) return false;
+            lockNode(leafNode);
+            // the rating does not change on a move, so the rating sums stay as they are
+            records.set(i, newRid);
+            return true;
+        } finally {
+            unlockStructure(stamp);
         }
-        int key = tempNode.getElements().get(0);
-        return key;
     }
 
+    /**
+     * points the entries of a step of records moved by MemoryPool.compact at their new locations
+     * moves are grouped by key so each posting list is scanned once however many of its records moved
+     * @param keys, keys of the records
+     * @param oldRids, record ids before the moves
+     * @param newRids, record ids after the moves
+     * @param count, number of moves in the arrays
+     * @return, number of entries found
+     */
+    public int relocateAll(int[] keys, long[] oldRids, long[] newRids, int count) {
+        int numFound = 0;
+        MoveGroups groups = new MoveGroups(keys, oldRids, newRids, count);
+        long stamp = lockStructure();
+        try {
+            while (groups.next()) {
+                LeafNode leafNode = ownLeaf(groups.getKey());
+                int idx = leafNode.findKey(groups.getKey());
+                if (idx < 0) continue;
+                lockNode(leafNode);
+                PostingList records = leafNode.getOwnedPostings(idx);
+                int numLeft = groups.size();
+                for (int i = 0; i < records.size() && numLeft > 0; i++) {
+                    long newRid = groups.find(records.get(i));
+                    if (newRid >= 0) {
+                        records.set(i, newRid);
+                        numLeft--;
+                    }
+                }
+                numFound += groups.size() - numLeft;
+            }
+        } finally {
+            unlockStructure(stamp);
+        }
+        return numFound;
+    }
 
     /**
-     * updates parent in top down fashion starting from root
-     * @param oldKey, old key to remove
-     * @param newKey, new key to insert
+     * not safe to call while other threads change a tree in concurrent mode
+     * @return, bytes held by the posting lists of all leaves
      */
-    public void updateParent(int oldKey, int newKey) {
+    public long getPostingsSizeInBytes() {
+        if (root == null) return 0;
         Node node = root;
-
-        int i;
-        int childIdx = -1;
-
         while (node instanceof NonLeafNode) {
-            NonLeafNode curr = (NonLeafNode) node;
-            for (i = 0; i < node.getElements().size(); i++) {
-                int element = node.getElements().get(i);
-                if (oldKey == element) {
-                    childIdx = i;
-                    node.getElements().remove(i);
-                    node.getElements().add(i, newKey);
-                }
-                else if (oldKey < element) childIdx = i;
+            node = ((NonLeafNode) node).getChild(0);
+        }
+        long bytes = 0;
+        for (LeafNode leafNode = (LeafNode) node; leafNode != null; leafNode = (LeafNode) leafNode.getNextNode()) {
+            for (int i = 0; i < leafNode.getNumKeys(); i++) {
+                bytes += leafNode.getPostings(i).getSizeInBytes();
             }
+        }
+        return bytes;
+    }
 
-            // if equal or larger to key in node, use last idx
-            if (childIdx == -1) childIdx = i;
-            node = curr.getChildren().get(childIdx);
+    private int getSmallestKeyFromChildren(Node currNode) {
+        Node tempNode = currNode;
+        while (tempNode instanceof NonLeafNode) {
+            NonLeafNode tempNode2 = (NonLeafNode) tempNode;
+            Node nextNode = tempNode2.getChild(0);
+            tempNode = nextNode;
         }
-        return;
+        int key = tempNode.getKey(0);
+        return key;
     }
 
     /**
@@ -597,14 +1600,28 @@ public class BPTree {
      * @return, average of average ratings
      */
     public float getAvgOfAvgRatings(ArrayList<RecordBlock> accessedRecords) {
-        if (accessedRecords.size() == 0) return 0;
+        return getAvgOfAvgRatings(accessedRecords.iterator());
+    }
+
+    /**
+     * calculates the average of average ratings in one pass, e.g. over rangeIterator without building a list
+     * @param accessedRecords, records accessed within a range of keys
+     * @return, average of average ratings
+     */
+    public float getAvgOfAvgRatings(Iterator<RecordBlock> accessedRecords) {
         float total = 0;
-        for (RecordBlock rb : accessedRecords) {
-            total += rb.getRecord().getAvgRating();
+        int count = 0;
+        while (accessedRecords.hasNext()) {
+            total += accessedRecords.next().getAvgRating();
+            count++;
         }
-        return (total / accessedRecords.size());
+        if (count == 0) return 0;
+        return (total / count);
     }
 
+    /**
+     * not safe to call while other threads change a tree in concurrent mode
+     */
     public void printTree() {
         ArrayList<Node> nodes = new ArrayList<>();
         int numNodes = 1;
@@ -623,14 +1640,14 @@ public class BPTree {
 
         while (nodes.isEmpty() == false) {
             cur = nodes.get(0);
-            for (int e : cur.getElements()) {
-                s += e + " ";
-
+            for (int i = 0; i < cur.getNumKeys(); i++) {
+                s += cur.getKey(i) + " ";
             }
 
             if (cur instanceof NonLeafNode) {
-                for (Node n : ((NonLeafNode)cur).getChildren()) {
-                    nodes.add(n);
+                NonLeafNode nonLeafNode = (NonLeafNode) cur;
+                for (int i = 0; i < nonLeafNode.getNumChildren(); i++) {
+                    nodes.add(nonLeafNode.getChild(i));
                 }
             }
 
@@ -0,0 +1,29 @@
+package bptree;
+
+/**
+ * packs (numVotes, avgRating) into one long whose signed order is the lexicographic order of the pair,
+ * numVotes in the high 32 bits and avgRating in the low 32 bits as an order preserving unsigned int
+ */
+public class CompositeKey {
+    /**
+     * @param numVotes, first component
+     * @param avgRating, second component
+     * @return, packed key
+     */
+    public static long pack(int numVotes, float avgRating) {
+        int bits = Float.floatToIntBits(avgRating);
+        // positive floats get their sign bit set and negative floats are inverted, so the bits order like the values
+        bits ^= (bits >> 31) | Integer.MIN_VALUE;
+        return ((long) numVotes << 32) | (bits & 0xFFFFFFFFL);
+    }
+
+    public static int getNumVotes(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static float getAvgRating(long key) {
+        int bits = (int) key;
+        bits = bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits;
+        return Float.intBitsToFloat(bits);
+    }
+}
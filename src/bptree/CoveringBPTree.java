@@ -0,0 +1,371 @@
+package bptree;
+
+import memorypool.Block;
+import memorypool.MemoryPool;
+import memorypool.RecordBlock;
+import memorypool.SecondaryIndex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * covering B+ tree on the composite key (numVotes, avgRating), see CompositeKey
+ * leaves hold the packed key and record id of every record, and optionally tconst as an included column, so
+ * range filters on both columns, AVG(avgRating) and tconst lists are answered from the leaves alone, aggregateRange
+ * never reads a data block, so no data block count is reported for it
+ * entries are ordered by (key, rid), which makes every entry unique even when records share both columns
+ * the memory pool keeps the tree up to date once it is registered with addSecondaryIndex
+ * deleted entries are removed from their leaf and leaves are never merged, like the paged tree
+ */
+public class CoveringBPTree implements SecondaryIndex {
+    private MemoryPool db;
+    private int capacity;
+    private boolean includeTconst;
+    private Node root;
+    private int numNodes;
+    private int numLevels;
+    private long numEntries;
+    private int numNodesAccessed;
+    // separator and new right node of the last split, read by the parent after a recursive insert
+    private long splitKey;
+    private long splitRid;
+    private Node splitNode;
+    private byte[] tconstBuf = new byte[Block.TCONST_SIZE];
+
+    private static abstract class Node {
+        int numKeys;
+        long[] keys;
+        long[] rids;
+    }
+
+    private static class LeafNode extends Node {
+        // tconst of entry i is tconsts[i * TCONST_SIZE ..], zero padded, null without the included column
+        byte[] tconsts;
+        LeafNode next;
+
+        LeafNode(int capacity, boolean includeTconst) {
+            keys = new long[capacity + 1];
+            rids = new long[capacity + 1];
+            tconsts = includeTconst ? new byte[(capacity + 1) * Block.TCONST_SIZE] : null;
+        }
+    }
+
+    private static class NonLeafNode extends Node {
+        // keys[i], rids[i] is the first entry under children[i + 1]
+        Node[] children;
+
+        NonLeafNode(int capacity) {
+            keys = new long[capacity + 1];
+            rids = new long[capacity + 1];
+            children = new Node[capacity + 2];
+        }
+    }
+
+    /**
+     * @param db, memory pool holding the indexed records
+     * @param capacity, most entries per node
+     * @param includeTconst, whether leaves also store tconst
+     */
+    public CoveringBPTree(MemoryPool db, int capacity, boolean includeTconst) {
+        this.db = db;
+        this.capacity = capacity;
+        this.includeTconst = includeTconst;
+        this.root = new LeafNode(capacity, includeTconst);
+        this.numNodes = 1;
+        this.numLevels = 1;
+        this.numEntries = 0;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    public long getNumEntries() {
+        return numEntries;
+    }
+
+    public int getNumNodesAccessed() {
+        return numNodesAccessed;
+    }
+
+    private static int compare(long key1, long rid1, long key2, long rid2) {
+        int c = Long.compare(key1, key2);
+        return c != 0 ? c : Long.compare(rid1, rid2);
+    }
+
+    /**
+     * @return, index of the first entry of node greater than (key, rid)
+     */
+    private static int upperBound(Node node, long key, long rid) {
+        int lo = 0;
+        int hi = node.numKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(node.keys[mid], node.rids[mid], key, rid) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return, index of the first entry of node not less than (key, rid)
+     */
+    private static int lowerBound(Node node, long key, long rid) {
+        int lo = 0;
+        int hi = node.numKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(node.keys[mid], node.rids[mid], key, rid) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * descends to the leaf that (key, rid) belongs in, counting the nodes on the way
+     */
+    private LeafNode findLeafNode(long key, long rid) {
+        numNodesAccessed = 1;
+        Node node = root;
+        while (node instanceof NonLeafNode) {
+            node = ((NonLeafNode) node).children[upperBound(node, key, rid)];
+            numNodesAccessed += 1;
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * adds the record at rid under the composite key of its numVotes and avgRating
+     * @param numVotes, numVotes of the record
+     * @param avgRating, avgRating of the record
+     * @param rid, record id of the record
+     */
+    public void insertKey(int numVotes, float avgRating, long rid) {
+        long key = CompositeKey.pack(numVotes, avgRating);
+        if (insert(root, key, rid)) {
+            NonLeafNode newRoot = new NonLeafNode(capacity);
+            newRoot.children[0] = root;
+            newRoot.children[1] = splitNode;
+            newRoot.keys[0] = splitKey;
+            newRoot.rids[0] = splitRid;
+            newRoot.numKeys = 1;
+            root = newRoot;
+            numNodes++;
+            numLevels++;
+        }
+        numEntries++;
+    }
+
+    /**
+     * @return, whether node was split, the separator and new node are left in splitKey, splitRid and splitNode
+     */
+    private boolean insert(Node node, long key, long rid) {
+        int idx = upperBound(node, key, rid);
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            shift(leaf, idx, 1);
+            leaf.keys[idx] = key;
+            leaf.rids[idx] = rid;
+            if (includeTconst) copyTconst(rid, leaf.tconsts, idx * Block.TCONST_SIZE);
+            leaf.numKeys++;
+            if (leaf.numKeys <= capacity) return false;
+            splitLeaf(leaf);
+            return true;
+        }
+        NonLeafNode nonLeaf = (NonLeafNode) node;
+        if (!insert(nonLeaf.children[idx], key, rid)) return false;
+        System.arraycopy(nonLeaf.keys, idx, nonLeaf.keys, idx + 1, nonLeaf.numKeys - idx);
+        System.arraycopy(nonLeaf.rids, idx, nonLeaf.rids, idx + 1, nonLeaf.numKeys - idx);
+        System.arraycopy(nonLeaf.children, idx + 1, nonLeaf.children, idx + 2, nonLeaf.numKeys - idx);
+        nonLeaf.keys[idx] = splitKey;
+        nonLeaf.rids[idx] = splitRid;
+        nonLeaf.children[idx + 1] = splitNode;
+        nonLeaf.numKeys++;
+        if (nonLeaf.numKeys <= capacity) return false;
+        splitNonLeaf(nonLeaf);
+        return true;
+    }
+
+    /**
+     * moves the entries of leaf from idx on by delta positions
+     */
+    private static void shift(LeafNode leaf, int idx, int delta) {
+        int n = leaf.numKeys - idx;
+        System.arraycopy(leaf.keys, idx, leaf.keys, idx + delta, n);
+        System.arraycopy(leaf.rids, idx, leaf.rids, idx + delta, n);
+        if (leaf.tconsts != null) {
+            System.arraycopy(leaf.tconsts, idx * Block.TCONST_SIZE, leaf.tconsts, (idx + delta) * Block.TCONST_SIZE,
+                    n * Block.TCONST_SIZE);
+        }
+    }
+
+    private void splitLeaf(LeafNode leaf) {
+        LeafNode right = new LeafNode(capacity, includeTconst);
+        int mid = leaf.numKeys / 2;
+        int n = leaf.numKeys - mid;
+        System.arraycopy(leaf.keys, mid, right.keys, 0, n);
+        System.arraycopy(leaf.rids, mid, right.rids, 0, n);
+        if (includeTconst) {
+            System.arraycopy(leaf.tconsts, mid * Block.TCONST_SIZE, right.tconsts, 0, n * Block.TCONST_SIZE);
+        }
+        right.numKeys = n;
+        leaf.numKeys = mid;
+        right.next = leaf.next;
+        leaf.next = right;
+        splitKey = right.keys[0];
+        splitRid = right.rids[0];
+        splitNode = right;
+        numNodes++;
+    }
+
+    private void splitNonLeaf(NonLeafNode node) {
+        NonLeafNode right = new NonLeafNode(capacity);
+        int mid = node.numKeys / 2;
+        // the middle separator moves up instead of into either half
+        int n = node.numKeys - mid - 1;
+        System.arraycopy(node.keys, mid + 1, right.keys, 0, n);
+        System.arraycopy(node.rids, mid + 1, right.rids, 0, n);
+        System.arraycopy(node.children, mid + 1, right.children, 0, n + 1);
+        Arrays.fill(node.children, mid + 1, node.numKeys + 1, null);
+        right.numKeys = n;
+        splitKey = node.keys[mid];
+        splitRid = node.rids[mid];
+        splitNode = right;
+        node.numKeys = mid;
+        numNodes++;
+    }
+
+    /**
+     * removes the entry of the record at rid, leaves are not merged when they get small
+     * @param numVotes, numVotes of the record
+     * @param avgRating, avgRating of the record
+     * @param rid, record id of the record
+     * @return, whether the entry was found
+     */
+    public boolean deleteKey(int numVotes, float avgRating, long rid) {
+        long key = CompositeKey.pack(numVotes, avgRating);
+        LeafNode leaf = findLeafNode(key, rid);
+        int idx = lowerBound(leaf, key, rid);
+        if (idx == leaf.numKeys || leaf.keys[idx] != key || leaf.rids[idx] != rid) return false;
+        shift(leaf, idx + 1, -1);
+        leaf.numKeys--;
+        numEntries--;
+        return true;
+    }
+
+    private void copyTconst(long rid, byte[] dst, int dstOffset) {
+        Block b = db.getRecordBlock(rid).getBlock();
+        int len = b.getTconstBytes(RecordBlock.ridSlot(rid), tconstBuf);
+        for (int i = 0; i < Block.TCONST_SIZE; i++) {
+            dst[dstOffset + i] = i < len ? tconstBuf[i] : 0;
+        }
+    }
+
+    public void recordWritten(long rid) {
+        RecordBlock rb = db.getRecordBlock(rid);
+        insertKey(rb.getNumVotes(), rb.getAvgRating(), rid);
+    }
+
+    public void recordDeleted(long rid) {
+        RecordBlock rb = db.getRecordBlock(rid);
+        deleteKey(rb.getNumVotes(), rb.getAvgRating(), rid);
+    }
+
+    public void relocated(int numVotes, long oldRid, long newRid) {
+        // the record is already at newRid with the same fields, so its key is read from there
+        float avgRating = db.getRecordBlock(newRid).getAvgRating();
+        deleteKey(numVotes, avgRating, oldRid);
+        insertKey(numVotes, avgRating, newRid);
+    }
+
+    /**
+     * calls visitor for every entry with numVotes in [minVotes, maxVotes] and avgRating in [minRating, maxRating],
+     * reading only leaves, numNodesAccessed counts the nodes read
+     */
+    private void scan(int minVotes, int maxVotes, float minRating, float maxRating, EntryVisitor visitor) {
+        long lo = CompositeKey.pack(minVotes, minRating);
+        long hi = CompositeKey.pack(maxVotes, maxRating);
+        LeafNode leaf = findLeafNode(lo, Long.MIN_VALUE);
+        int idx = lowerBound(leaf, lo, Long.MIN_VALUE);
+        while (leaf != null) {
+            for (; idx < leaf.numKeys; idx++) {
+                long key = leaf.keys[idx];
+                if (key > hi) return;
+                float rating = CompositeKey.getAvgRating(key);
+                if (rating >= minRating && rating <= maxRating) visitor.visit(leaf, idx, rating);
+            }
+            leaf = leaf.next;
+            idx = 0;
+            if (leaf != null) numNodesAccessed += 1;
+        }
+    }
+
+    private interface EntryVisitor {
+        void visit(LeafNode leaf, int idx, float avgRating);
+    }
+
+    /**
+     * count and AVG(avgRating) of records with numVotes in [minVotes, maxVotes] and avgRating in
+     * [minRating, maxRating], answered from the leaves without reading any data block
+     * @param minVotes, lowest numVotes searching
+     * @param maxVotes, highest numVotes searching
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, count and rating sum of the matching records
+     */
+    public RangeAggregate aggregateRange(int minVotes, int maxVotes, float minRating, float maxRating) {
+        long[] count = {0};
+        double[] sum = {0};
+        scan(minVotes, maxVotes, minRating, maxRating, (leaf, idx, rating) -> {
+            count[0]++;
+            sum[0] += rating;
+        });
+        return new RangeAggregate(count[0], sum[0]);
+    }
+
+    public RangeAggregate aggregateRange(int minVotes, int maxVotes) {
+        return aggregateRange(minVotes, maxVotes, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * record ids of records with numVotes in [minVotes, maxVotes] and avgRating in [minRating, maxRating]
+     * @param minVotes, lowest numVotes searching
+     * @param maxVotes, highest numVotes searching
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, locations of the matching records, ordered by (numVotes, avgRating)
+     */
+    public ArrayList<RecordBlock> searchNodes(int minVotes, int maxVotes, float minRating, float maxRating) {
+        ArrayList<RecordBlock> records = new ArrayList<>();
+        scan(minVotes, maxVotes, minRating, maxRating,
+                (leaf, idx, rating) -> records.add(db.getRecordBlock(leaf.rids[idx])));
+        return records;
+    }
+
+    /**
+     * tconst of records with numVotes in [minVotes, maxVotes] and avgRating in [minRating, maxRating], read from the
+     * included column without reading any data block
+     * @param minVotes, lowest numVotes searching
+     * @param maxVotes, highest numVotes searching
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, tconst of the matching records, ordered by (numVotes, avgRating)
+     * @throws IllegalStateException if the tree was created without the tconst column
+     */
+    public ArrayList<String> searchTconsts(int minVotes, int maxVotes, float minRating, float maxRating) {
+        if (!includeTconst) throw new IllegalStateException("tconst is not included in this index");
+        ArrayList<String> tconsts = new ArrayList<>();
+        scan(minVotes, maxVotes, minRating, maxRating, (leaf, idx, rating) -> {
+            int base = idx * Block.TCONST_SIZE;
+            int len = 0;
+            while (len < Block.TCONST_SIZE && leaf.tconsts[base + len] != 0) len++;
+            tconsts.add(new String(leaf.tconsts, base, len, StandardCharsets.US_ASCII));
+        });
+        return tconsts;
+    }
+}
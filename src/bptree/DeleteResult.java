@@ -0,0 +1,25 @@
+package bptree;
+
+public class DeleteResult {
+    private int numRecords;
+    private int numNodesAccessed;
+    private int numBlocksAccessed;
+
+    public DeleteResult(int numRecords, int numNodesAccessed, int numBlocksAccessed) {
+        this.numRecords = numRecords;
+        this.numNodesAccessed = numNodesAccessed;
+        this.numBlocksAccessed = numBlocksAccessed;
+    }
+
+    public int getNumRecords() {
+        return numRecords;
+    }
+
+    public int getNumNodesAccessed() {
+        return numNodesAccessed;
+    }
+
+    public int getNumBlocksAccessed() {
+        return numBlocksAccessed;
+    }
+}
@@ -0,0 +1,21 @@
+package bptree;
+
+import memorypool.RecordBlock;
+
+public class KeyRecordPair {
+    private int key;
+    private RecordBlock recordBlock;
+
+    public KeyRecordPair(int key, RecordBlock recordBlock) {
+        this.key = key;
+        this.recordBlock = recordBlock;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public RecordBlock getRecordBlock() {
+        return recordBlock;
+    }
+}
@@ -1,21 +1,140 @@
 package bptree;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
 import memorypool.RecordBlock;
 
 public class LeafNode extends Node {
-    private ArrayList<ArrayList<RecordBlock>> recordBlocks;
+    // postings[i] holds the record ids of every record with key getKey(i)
+    private PostingList[] postings;
 
-    public LeafNode() {
-        this.recordBlocks = new ArrayList<>();
+    public LeafNode(int capacity) {
+        super(capacity);
+        this.postings = new PostingList[capacity + 1];
     }
 
-    public ArrayList<ArrayList<RecordBlock>> getRecordBlocks() {
-        return recordBlocks;
+    private LeafNode(LeafNode node, int epoch) {
+        super(node, epoch);
+        this.postings = node.postings.clone();
     }
 
-    public void setRecordBlocks(ArrayList<ArrayList<RecordBlock>> recordBlocks) {
-        this.recordBlocks = recordBlocks;
-        return;
+    /**
+     * @param epoch, version the copy belongs to
+     * @return, copy of this leaf sharing its posting lists, which are copied when first written through the copy
+     */
+    LeafNode copy(int epoch) {
+        return new LeafNode(this, epoch);
+    }
+
+    /**
+     * @return, postings of the key at idx, records must be added through addRecordBlock to keep aggregates right
+     */
+    public PostingList getPostings(int idx) {
+        return postings[idx];
+    }
+
+    /**
+     * @param idx, position of the key
+     * @return, postings of the key at idx to write to, copied first if an older version of the leaf shares them
+     */
+    PostingList getOwnedPostings(int idx) {
+        if (postings[idx].getEpoch() != getEpoch()) {
+            postings[idx] = postings[idx].copy(getEpoch());
+        }
+        return postings[idx];
+    }
+
+    public double getRatingSum(int idx) {
+        return postings[idx].getRatingSum();
+    }
+
+    /**
+     * adds a record to the key at idx
+     * @param idx, position of the key
+     * @param recordBlock, the record and block which it is in
+     */
+    public void addRecordBlock(int idx, RecordBlock recordBlock) {
+        float rating = recordBlock.getAvgRating();
+        getOwnedPostings(idx).add(recordBlock.getRid(), rating);
+        addToSubtree(1, rating);
+    }
+
+    /**
+     * adds a record to the key at idx without updating the aggregates, the caller adds it to them later
+     * @param idx, position of the key
+     * @param recordBlock, the record and block which it is in
+     * @return, average rating of the record
+     */
+    float addRecordBlockDeferred(int idx, RecordBlock recordBlock) {
+        float rating = recordBlock.getAvgRating();
+        getOwnedPostings(idx).add(recordBlock.getRid(), rating);
+        return rating;
+    }
+
+    /**
+     * inserts key and its postings at idx, shifting later entries right
+     * @param idx, position to insert at
+     * @param key, key to insert
+     * @param entry, postings for key
+     */
+    public void insertEntry(int idx, int key, PostingList entry) {
+        int numKeys = getNumKeys();
+        if (numKeys == postings.length) {
+            postings = Arrays.copyOf(postings, postings.length * 2);
+        }
+        System.arraycopy(postings, idx, postings, idx + 1, numKeys - idx);
+        postings[idx] = entry;
+        insertKeyAt(idx, key);
+        if (entry.size() > 0) addToSubtree(entry.size(), entry.getRatingSum());
+    }
+
+    public void appendEntry(int key, PostingList entry) {
+        insertEntry(getNumKeys(), key, entry);
+    }
+
+    /**
+     * removes key and its postings at idx, shifting later entries left
+     * @param idx, position to remove
+     * @return, postings of the removed key
+     */
+    public PostingList removeEntry(int idx) {
+        PostingList entry = removeEntryDeferred(idx);
+        addToSubtree(-entry.size(), -entry.getRatingSum());
+        return entry;
+    }
+
+    /**
+     * removes key and its postings at idx without updating the aggregates, the caller takes them off later
+     * @param idx, position to remove
+     * @return, postings of the removed key
+     */
+    PostingList removeEntryDeferred(int idx) {
+        int numKeys = getNumKeys();
+        Objects.checkIndex(idx, numKeys);
+        PostingList entry = postings[idx];
+        System.arraycopy(postings, idx + 1, postings, idx, numKeys - idx - 1);
+        postings[numKeys - 1] = null;
+        removeKeyAt(idx);
+        return entry;
+    }
+
+    /**
+     * moves entries from idx onwards into an empty leaf, used when splitting
+     * @param from, first index to move
+     * @param node, empty leaf receiving the entries
+     */
+    public void moveEntriesTo(int from, LeafNode node) {
+        int numKeys = getNumKeys();
+        long count = 0;
+        double ratingSum = 0;
+        for (int i = from; i < numKeys; i++) {
+            count += postings[i].size();
+            ratingSum += postings[i].getRatingSum();
+        }
+        System.arraycopy(postings, from, node.postings, 0, numKeys - from);
+        Arrays.fill(postings, from, numKeys, null);
+        moveKeysTo(from, node);
+        addToSubtree(-count, -ratingSum);
+        node.addToSubtree(count, ratingSum);
     }
 }
@@ -0,0 +1,68 @@
+package bptree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * a step of moves from MemoryPool.compact grouped by key, with the old record ids of each group sorted, so an index
+ * visits every key once and looks up its entries with a binary search instead of searching for each move
+ */
+class MoveGroups {
+    private int[] keys;
+    private long[] oldRids;
+    private long[] newRids;
+    // positions of the moves in order of key, then old record id
+    private Integer[] order;
+    private int count;
+    // current group is order[start..end)
+    private int start;
+    private int end;
+    private long[] groupOldRids;
+
+    MoveGroups(int[] keys, long[] oldRids, long[] newRids, int count) {
+        this.keys = keys;
+        this.oldRids = oldRids;
+        this.newRids = newRids;
+        this.count = count;
+        this.order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> keys[i]).thenComparingLong(i -> oldRids[i]));
+        this.start = 0;
+        this.end = 0;
+        this.groupOldRids = new long[count];
+    }
+
+    /**
+     * moves on to the moves of the next key
+     * @return, false once every group has been visited
+     */
+    boolean next() {
+        start = end;
+        if (start >= count) return false;
+        int key = keys[order[start]];
+        while (end < count && keys[order[end]] == key) {
+            groupOldRids[end - start] = oldRids[order[end]];
+            end++;
+        }
+        return true;
+    }
+
+    int getKey() {
+        return keys[order[start]];
+    }
+
+    int size() {
+        return end - start;
+    }
+
+    /**
+     * @param rid, record id of an entry with the current key
+     * @return, where the record was moved to, or -1 if it was not moved
+     */
+    long find(long rid) {
+        int i = Arrays.binarySearch(groupOldRids, 0, end - start, rid);
+        return i < 0 ? -1 : newRids[order[start + i]];
+    }
+}
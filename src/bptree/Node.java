@@ -1,22 +1,77 @@
 package bptree;
 
-import java.util.ArrayList;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
 
 public class Node {
-    private ArrayList<Integer> elements;
+    private static final VarHandle SUBTREE_COUNT;
+    private static final VarHandle SUBTREE_RATING_SUM;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SUBTREE_COUNT = lookup.findVarHandle(Node.class, "subtreeCount", long.class);
+            SUBTREE_RATING_SUM = lookup.findVarHandle(Node.class, "subtreeRatingSum", double.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // keys are kept sorted in keys[0..numKeys), with one spare slot so a node can overflow before splitting
+    private int[] keys;
+    private int numKeys;
     private NonLeafNode parent;
     private Node prevNode;
     private Node nextNode;
+    // number of records in this subtree and the sum of their average ratings, kept up to date by the
+    // entry and child operations of LeafNode and NonLeafNode so range aggregates need not visit every leaf
+    private long subtreeCount;
+    private double subtreeRatingSum;
+    // only set for trees in concurrent mode, its optimistic read stamp is the node's version
+    private StampedLock latch;
+    // version of the tree the node was created in, nodes of older versions may be shared with published snapshots
+    // and are copied before they are changed
+    private int epoch;
 
-    public Node() {
-        this.elements = new ArrayList<>();
+    public Node(int capacity) {
+        this.keys = new int[capacity + 1];
+        this.numKeys = 0;
         this.parent = null;
         this.prevNode = null;
         this.nextNode = null;
+        this.subtreeCount = 0;
+        this.subtreeRatingSum = 0;
     }
 
-    public ArrayList<Integer> getElements() {
-        return elements;
+    /**
+     * copies node into a newer version, its parent and sibling links still point at the original's
+     * @param node, node to copy
+     * @param epoch, version the copy belongs to
+     */
+    protected Node(Node node, int epoch) {
+        this.keys = node.keys.clone();
+        this.numKeys = node.numKeys;
+        this.parent = node.parent;
+        this.prevNode = node.prevNode;
+        this.nextNode = node.nextNode;
+        this.subtreeCount = node.subtreeCount;
+        this.subtreeRatingSum = node.subtreeRatingSum;
+        this.epoch = epoch;
+    }
+
+    public int getNumKeys() {
+        return numKeys;
+    }
+
+    public int getKey(int idx) {
+        return keys[idx];
+    }
+
+    public void setKey(int idx, int key) {
+        keys[idx] = key;
     }
 
     public NonLeafNode getParent() {
@@ -39,17 +94,161 @@ public class Node {
         this.nextNode = nextNode;
     }
 
-    public void setElements(ArrayList<Integer> elements) {
-        this.elements = elements;
-    }
-
     public void setParent(NonLeafNode parent) {
         this.parent = parent;
     }
 
+    int getEpoch() {
+        return epoch;
+    }
+
+    void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    public StampedLock getLatch() {
+        return latch;
+    }
+
+    /**
+     * gives this node a latch, for nodes of a tree in concurrent mode
+     */
+    void enableLatch() {
+        this.latch = new StampedLock();
+    }
+
+    public long getSubtreeCount() {
+        return subtreeCount;
+    }
+
+    public double getSubtreeRatingSum() {
+        return subtreeRatingSum;
+    }
+
+    /**
+     * adds to the aggregates of this node and every ancestor
+     * @param count, change in number of records
+     * @param ratingSum, change in sum of average ratings
+     */
+    protected void addToSubtree(long count, double ratingSum) {
+        for (Node node = this; node != null; node = node.parent) {
+            node.subtreeCount += count;
+            node.subtreeRatingSum += ratingSum;
+        }
+    }
+
+    /**
+     * adds to the aggregates of this node and every ancestor with atomic adds, for writers of a tree in concurrent mode
+     * that hold only the latch of a leaf, so other leaves under the same ancestors can change at the same time
+     * @param count, change in number of records
+     * @param ratingSum, change in sum of average ratings
+     */
+    protected void addToSubtreeAtomic(long count, double ratingSum) {
+        for (Node node = this; node != null; node = node.parent) {
+            SUBTREE_COUNT.getAndAdd(node, count);
+            SUBTREE_RATING_SUM.getAndAdd(node, ratingSum);
+        }
+    }
+
+    /**
+     * adds to the aggregates of this node only, for callers that pass the change on to the ancestors themselves
+     * @param count, change in number of records
+     * @param ratingSum, change in sum of average ratings
+     */
+    protected void addToNode(long count, double ratingSum) {
+        subtreeCount += count;
+        subtreeRatingSum += ratingSum;
+    }
+
+    /**
+     * binary searches for key
+     * @param key, key to look for
+     * @return, index of key if present, else -(insertion point) - 1
+     */
+    public int findKey(int key) {
+        return Arrays.binarySearch(keys, 0, numKeys, key);
+    }
+
+    /**
+     * @param key, key to compare against
+     * @return, index of first key that is >= key, or numKeys if there is none
+     */
+    public int lowerBound(int key) {
+        int low = 0;
+        int high = numKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @param key, key to compare against
+     * @return, index of first key that is > key, or numKeys if there is none
+     */
+    public int upperBound(int key) {
+        int low = 0;
+        int high = numKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * shifts keys from idx onwards right by one and inserts key at idx
+     * @param idx, position to insert at
+     * @param key, key to insert
+     */
+    protected void insertKeyAt(int idx, int key) {
+        if (numKeys == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        System.arraycopy(keys, idx, keys, idx + 1, numKeys - idx);
+        keys[idx] = key;
+        numKeys++;
+    }
+
+    /**
+     * removes key at idx and shifts the following keys left by one
+     * @param idx, position to remove
+     * @return, the removed key
+     */
+    protected int removeKeyAt(int idx) {
+        Objects.checkIndex(idx, numKeys);
+        int key = keys[idx];
+        System.arraycopy(keys, idx + 1, keys, idx, numKeys - idx - 1);
+        numKeys--;
+        return key;
+    }
+
+    /**
+     * moves keys[from..numKeys) to the start of node's keys, used when splitting
+     * @param from, first index to move
+     * @param node, empty node receiving the keys
+     */
+    protected void moveKeysTo(int from, Node node) {
+        int count = numKeys - from;
+        System.arraycopy(keys, from, node.keys, 0, count);
+        node.numKeys = count;
+        numKeys = from;
+    }
+
+    /**
+     * truncates keys to the first numKeys
+     * @param numKeys, number of keys to keep
+     */
+    protected void truncateKeys(int numKeys) {
+        this.numKeys = numKeys;
+    }
+
     public boolean equals(Node node) {
         if (node instanceof Node) {
-            if (elements == node.getElements() && parent == node.getParent())
+            if (keys == node.keys && parent == node.getParent())
                 return true;
         }
         return false;
@@ -1,20 +1,119 @@
 package bptree;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
 
 public class NonLeafNode extends Node {
-    private ArrayList<Node> children;
+    // children[i] holds keys < getKey(i), children[numKeys] holds keys >= the last key
+    private Node[] children;
+    private int numChildren;
 
-    public NonLeafNode() {
-        this.children = new ArrayList<>();
+    public NonLeafNode(int capacity) {
+        super(capacity);
+        this.children = new Node[capacity + 2];
+        this.numChildren = 0;
     }
 
-    public ArrayList<Node> getChildren() {
-        return children;
+    private NonLeafNode(NonLeafNode node, int epoch) {
+        super(node, epoch);
+        this.children = node.children.clone();
+        this.numChildren = node.numChildren;
     }
 
-    public void setChildren(ArrayList<Node> children) {
-        this.children = children;
-        return;
+    /**
+     * @param epoch, version the copy belongs to
+     * @return, copy of this node with the same children, for a newer version of the tree
+     */
+    NonLeafNode copy(int epoch) {
+        return new NonLeafNode(this, epoch);
+    }
+
+    public int getNumChildren() {
+        return numChildren;
+    }
+
+    public Node getChild(int idx) {
+        return children[idx];
+    }
+
+    /**
+     * @param child, node to look for
+     * @return, index of child, or -1 if it is not a child of this node
+     */
+    public int indexOfChild(Node child) {
+        for (int i = 0; i < numChildren; i++) {
+            if (children[i] == child) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * replaces the child at idx with a copy of it, which has the same aggregates
+     * @param idx, position of the child
+     * @param child, copy of the child
+     */
+    void setChild(int idx, Node child) {
+        Objects.checkIndex(idx, numChildren);
+        children[idx] = child;
+    }
+
+    public void insertChildAt(int idx, Node child) {
+        if (numChildren == children.length) {
+            children = Arrays.copyOf(children, children.length * 2);
+        }
+        System.arraycopy(children, idx, children, idx + 1, numChildren - idx);
+        children[idx] = child;
+        numChildren++;
+        addToSubtree(child.getSubtreeCount(), child.getSubtreeRatingSum());
+    }
+
+    public void appendChild(Node child) {
+        insertChildAt(numChildren, child);
+    }
+
+    public Node removeChildAt(int idx) {
+        Objects.checkIndex(idx, numChildren);
+        Node child = children[idx];
+        System.arraycopy(children, idx + 1, children, idx, numChildren - idx - 1);
+        children[--numChildren] = null;
+        addToSubtree(-child.getSubtreeCount(), -child.getSubtreeRatingSum());
+        return child;
+    }
+
+    public void insertKey(int idx, int key) {
+        insertKeyAt(idx, key);
+    }
+
+    public void appendKey(int key) {
+        insertKeyAt(getNumKeys(), key);
+    }
+
+    public int removeKey(int idx) {
+        return removeKeyAt(idx);
+    }
+
+    /**
+     * moves keys after keyMid and children from childMid onwards into an empty node, used when splitting
+     * the key at keyMid is dropped, as the caller pushes it up to the parent
+     * @param keyMid, index of the key being pushed up
+     * @param childMid, first child index to move
+     * @param node, empty node receiving the keys and children
+     */
+    public void moveEntriesTo(int keyMid, int childMid, NonLeafNode node) {
+        moveKeysTo(keyMid + 1, node);
+        truncateKeys(keyMid);
+        int count = numChildren - childMid;
+        long subtreeCount = 0;
+        double subtreeRatingSum = 0;
+        for (int i = childMid; i < numChildren; i++) {
+            subtreeCount += children[i].getSubtreeCount();
+            subtreeRatingSum += children[i].getSubtreeRatingSum();
+        }
+        System.arraycopy(children, childMid, node.children, 0, count);
+        Arrays.fill(children, childMid, numChildren, null);
+        node.numChildren = count;
+        numChildren = childMid;
+        addToSubtree(-subtreeCount, -subtreeRatingSum);
+        node.addToSubtree(subtreeCount, subtreeRatingSum);
     }
 }
@@ -0,0 +1,633 @@
+package bptree;
+
+import memorypool.BufferPool;
+import memorypool.MemoryPool;
+import memorypool.PageFile;
+import memorypool.RecordBlock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * B+ tree stored in an index file, where every node is a fixed-size page and nodes refer to each other by page number
+ * leaves hold one (key, record id) entry per record, so duplicate keys may span several leaves
+ * deletes remove entries without merging nodes, leaves that become empty stay in the leaf chain
+ * all page reads and writes go through a BufferPool, so only its frames are held in memory
+ *
+ * page 0: magic, page size, root page, number of levels, number of entries (written on close)
+ * leaf page: type, number of keys, next page, prev page, then (key, record id) entries
+ * nonleaf page: type, number of keys, first child, then (key, child) entries
+ */
+public class PagedBPTree {
+    private static final int MAGIC = 0x42505431;
+    private static final int NO_PAGE = -1;
+    private static final byte LEAF = 0;
+    private static final byte NON_LEAF = 1;
+    private static final int TYPE = 0;
+    private static final int NUM_KEYS = 1;
+    private static final int NEXT_PAGE = 4;
+    private static final int PREV_PAGE = 8;
+    private static final int FIRST_CHILD = 4;
+    private static final int LEAF_HEADER = 12;
+    private static final int LEAF_ENTRY = 4 + 8;
+    private static final int NON_LEAF_HEADER = 8;
+    private static final int NON_LEAF_ENTRY = 4 + 4;
+
+    private PageFile file;
+    private BufferPool bufferPool;
+    private MemoryPool db;
+    private int pageSize;
+    private int leafCapacity;
+    private int nonLeafCapacity;
+    private int rootPage;
+    private int numLevels;
+    private long numEntries;
+    // LSN of the memory pool's log the index was last brought up to date with, kept in the header so an index that
+    // missed changes replayed from the log is not reused
+    private long lsn;
+    private int numNodesAccessed;
+
+    private PagedBPTree(PageFile file, BufferPool bufferPool, MemoryPool db) {
+        this.file = file;
+        this.bufferPool = bufferPool;
+        this.db = db;
+        this.pageSize = file.getPageSize();
+        this.leafCapacity = (pageSize - LEAF_HEADER) / LEAF_ENTRY;
+        this.nonLeafCapacity = (pageSize - NON_LEAF_HEADER) / NON_LEAF_ENTRY;
+        this.numNodesAccessed = 0;
+    }
+
+    /**
+     * opens the index file at path, creating an empty index if it does not exist
+     * @param path, index file
+     * @param pageSize, size of a node, must match the size the file was created with
+     * @param db, memory pool whose record ids the index holds
+     * @param numFrames, number of pages the buffer pool caches
+     * @param policy, eviction policy of the buffer pool
+     * @return, the opened index
+     * @throws IOException if the file cannot be opened or was created with a different page size
+     */
+    public static PagedBPTree open(String path, int pageSize, MemoryPool db, int numFrames, BufferPool.Policy policy) throws IOException {
+        PageFile file = new PageFile(path, pageSize);
+        PagedBPTree tree = new PagedBPTree(file, new BufferPool(file, numFrames, policy), db);
+        if (file.getNumPages() == 0) {
+            file.allocatePage();
+            tree.clear();
+            return tree;
+        }
+        ByteBuffer header = tree.bufferPool.pin(0);
+        int magic = header.getInt(0);
+        int headerPageSize = header.getInt(4);
+        tree.rootPage = header.getInt(8);
+        tree.numLevels = header.getInt(12);
+        tree.numEntries = header.getLong(16);
+        tree.lsn = header.getLong(24);
+        tree.bufferPool.unpin(0, false);
+        if (magic != MAGIC || headerPageSize != pageSize) {
+            file.close();
+            throw new IOException("Index file " + path + " was not created with page size " + pageSize);
+        }
+        return tree;
+    }
+
+    public static PagedBPTree open(String path, int pageSize, MemoryPool db) throws IOException {
+        return open(path, pageSize, db, 64, BufferPool.Policy.CLOCK);
+    }
+
+    public int getNumNodes() {
+        return file.getNumPages() - 1;
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    public long getNumEntries() {
+        return numEntries;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    /**
+     * @param lsn, LSN of the pool's log that the index now matches, written to the header with the entry count
+     */
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public int getNumNodesAccessed() {
+        return numNodesAccessed;
+    }
+
+    public int getLeafCapacity() {
+        return leafCapacity;
+    }
+
+    public int getNonLeafCapacity() {
+        return nonLeafCapacity;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = bufferPool.pinNew(0);
+        header.putInt(0, MAGIC);
+        header.putInt(4, pageSize);
+        header.putInt(8, rootPage);
+        header.putInt(12, numLevels);
+        header.putLong(16, numEntries);
+        header.putLong(24, lsn);
+        bufferPool.unpin(0, true);
+    }
+
+    /**
+     * resets the index to a single empty leaf, pages already in the file are left unused
+     */
+    private void clear() {
+        rootPage = file.allocatePage();
+        numLevels = 1;
+        numEntries = 0;
+        ByteBuffer leaf = bufferPool.pinNew(rootPage);
+        initLeaf(leaf, NO_PAGE, NO_PAGE);
+        bufferPool.unpin(rootPage, true);
+        writeHeader();
+    }
+
+    /**
+     * pins a node and counts it as accessed, the caller unpins it
+     * @param pageId, page of the node
+     * @return, frame holding the node
+     */
+    private ByteBuffer readNode(int pageId) {
+        numNodesAccessed += 1;
+        return bufferPool.pin(pageId);
+    }
+
+    private static void clearPage(ByteBuffer page) {
+        for (int i = 0; i < page.capacity(); i++) page.put(i, (byte) 0);
+    }
+
+    private static void initLeaf(ByteBuffer page, int nextPage, int prevPage) {
+        clearPage(page);
+        page.put(TYPE, LEAF);
+        page.putShort(NUM_KEYS, (short) 0);
+        page.putInt(NEXT_PAGE, nextPage);
+        page.putInt(PREV_PAGE, prevPage);
+    }
+
+    private static boolean isLeaf(ByteBuffer page) {
+        return page.get(TYPE) == LEAF;
+    }
+
+    private static int numKeys(ByteBuffer page) {
+        return page.getShort(NUM_KEYS);
+    }
+
+    private static void setNumKeys(ByteBuffer page, int numKeys) {
+        page.putShort(NUM_KEYS, (short) numKeys);
+    }
+
+    private static int leafKey(ByteBuffer page, int idx) {
+        return page.getInt(LEAF_HEADER + idx * LEAF_ENTRY);
+    }
+
+    private static long leafRid(ByteBuffer page, int idx) {
+        return page.getLong(LEAF_HEADER + idx * LEAF_ENTRY + 4);
+    }
+
+    private static void setLeafEntry(ByteBuffer page, int idx, int key, long rid) {
+        page.putInt(LEAF_HEADER + idx * LEAF_ENTRY, key);
+        page.putLong(LEAF_HEADER + idx * LEAF_ENTRY + 4, rid);
+    }
+
+    private static int nonLeafKey(ByteBuffer page, int idx) {
+        return page.getInt(NON_LEAF_HEADER + idx * NON_LEAF_ENTRY);
+    }
+
+    /**
+     * @param page, nonleaf page
+     * @param idx, child index, from 0 to numKeys
+     * @return, page number of the child
+     */
+    private static int child(ByteBuffer page, int idx) {
+        if (idx == 0) return page.getInt(FIRST_CHILD);
+        return page.getInt(NON_LEAF_HEADER + (idx - 1) * NON_LEAF_ENTRY + 4);
+    }
+
+    /**
+     * @return, number of keys in a leaf or nonleaf page that are < key
+     */
+    private static int lowerBound(ByteBuffer page, int key) {
+        boolean leaf = isLeaf(page);
+        int low = 0;
+        int high = numKeys(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int midKey = leaf ? leafKey(page, mid) : nonLeafKey(page, mid);
+            if (midKey < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return, number of keys in a leaf or nonleaf page that are <= key
+     */
+    private static int upperBound(ByteBuffer page, int key) {
+        boolean leaf = isLeaf(page);
+        int low = 0;
+        int high = numKeys(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int midKey = leaf ? leafKey(page, mid) : nonLeafKey(page, mid);
+            if (midKey <= key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * builds the index bottom up from pairs sorted by key, replacing its contents
+     * only the first key and page number of each node are kept in memory, so the index can be larger than the heap
+     * @param sortedPairs, key and recordBlock pairs in ascending order of key
+     * @param fillFactor, fraction of each node to fill
+     */
+    public void bulkLoad(Iterator<KeyRecordPair> sortedPairs, float fillFactor) {
+        int leafTarget = Math.max(1, Math.min(leafCapacity, Math.round(leafCapacity * fillFactor)));
+        int childTarget = Math.max(2, Math.min(nonLeafCapacity + 1, Math.round((nonLeafCapacity + 1) * fillFactor)));
+        numEntries = 0;
+        // keep only the header page, which is rewritten at the end
+        bufferPool.clear();
+        file.truncate(1);
+
+        // leaf level
+        int[] firstKeys = new int[16];
+        int[] pageIds = new int[16];
+        int numNodes = 0;
+        int leafPage = file.allocatePage();
+        int prevPage = NO_PAGE;
+        ByteBuffer leaf = bufferPool.pinNew(leafPage);
+        initLeaf(leaf, NO_PAGE, prevPage);
+        int prevKey = Integer.MIN_VALUE;
+        while (sortedPairs.hasNext()) {
+            KeyRecordPair pair = sortedPairs.next();
+            if (pair.getKey() < prevKey) {
+                throw new IllegalArgumentException("Bulk load input is not sorted at key " + pair.getKey());
+            }
+            prevKey = pair.getKey();
+            int n = numKeys(leaf);
+            if (n == leafTarget) {
+                int nextPage = file.allocatePage();
+                leaf.putInt(NEXT_PAGE, nextPage);
+                bufferPool.unpin(leafPage, true);
+                prevPage = leafPage;
+                leafPage = nextPage;
+                leaf = bufferPool.pinNew(leafPage);
+                initLeaf(leaf, NO_PAGE, prevPage);
+                n = 0;
+            }
+            if (n == 0) {
+                if (numNodes == pageIds.length) {
+                    firstKeys = Arrays.copyOf(firstKeys, numNodes * 2);
+                    pageIds = Arrays.copyOf(pageIds, numNodes * 2);
+                }
+                firstKeys[numNodes] = pair.getKey();
+                pageIds[numNodes] = leafPage;
+                numNodes++;
+            }
+            setLeafEntry(leaf, n, pair.getKey(), pair.getRecordBlock().getRid());
+            setNumKeys(leaf, n + 1);
+            numEntries++;
+        }
+        bufferPool.unpin(leafPage, true);
+        if (numNodes == 0) {
+            pageIds[numNodes++] = leafPage;
+        }
+        numLevels = 1;
+
+        // nonleaf levels, the separator before each child is the first key of that child
+        while (numNodes > 1) {
+            int numParents = 0;
+            for (int start = 0; start < numNodes; start += childTarget) {
+                int end = Math.min(numNodes, start + childTarget);
+                int parentPage = file.allocatePage();
+                writeNonLeaf(parentPage, firstKeys, pageIds, start, end);
+                firstKeys[numParents] = firstKeys[start];
+                pageIds[numParents] = parentPage;
+                numParents++;
+            }
+            numNodes = numParents;
+            numLevels++;
+        }
+        rootPage = pageIds[0];
+        writeHeader();
+    }
+
+    private void writeNonLeaf(int pageId, int[] firstKeys, int[] pageIds, int start, int end) {
+        ByteBuffer page = bufferPool.pinNew(pageId);
+        page.put(TYPE, NON_LEAF);
+        setNumKeys(page, end - start - 1);
+        page.putInt(FIRST_CHILD, pageIds[start]);
+        for (int i = start + 1; i < end; i++) {
+            int pos = NON_LEAF_HEADER + (i - start - 1) * NON_LEAF_ENTRY;
+            page.putInt(pos, firstKeys[i]);
+            page.putInt(pos + 4, pageIds[i]);
+        }
+        bufferPool.unpin(pageId, true);
+    }
+
+    /**
+     * inserts the record id of recordBlock into the index, splitting pages on the way back up
+     * @param key, key to insert
+     * @param recordBlock, the record and block which it is in
+     */
+    public void insertKey(int key, RecordBlock recordBlock) {
+        numNodesAccessed = 0;
+        int[] path = new int[numLevels];
+        int[] childIdx = new int[numLevels];
+        int pageId = rootPage;
+        ByteBuffer page = readNode(pageId);
+        int level = 0;
+        while (!isLeaf(page)) {
+            path[level] = pageId;
+            childIdx[level] = upperBound(page, key);
+            int childPage = child(page, childIdx[level]);
+            bufferPool.unpin(pageId, false);
+            pageId = childPage;
+            page = readNode(pageId);
+            level++;
+        }
+
+        // insert after any equal keys
+        int n = numKeys(page);
+        int idx = upperBound(page, key);
+        int[] keys = new int[n + 1];
+        long[] rids = new long[n + 1];
+        for (int i = 0, j = 0; i <= n; i++) {
+            if (i == idx) {
+                keys[i] = key;
+                rids[i] = recordBlock.getRid();
+            } else {
+                keys[i] = leafKey(page, j);
+                rids[i] = leafRid(page, j);
+                j++;
+            }
+        }
+        numEntries++;
+
+        if (n + 1 <= leafCapacity) {
+            writeLeafEntries(page, keys, rids, 0, n + 1);
+            bufferPool.unpin(pageId, true);
+            return;
+        }
+
+        // split leaf, second half moves to a new page linked after this one
+        int midpoint = (n + 2) / 2;
+        int newPageId = file.allocatePage();
+        int nextPage = page.getInt(NEXT_PAGE);
+        ByteBuffer newLeaf = bufferPool.pinNew(newPageId);
+        initLeaf(newLeaf, nextPage, pageId);
+        writeLeafEntries(newLeaf, keys, rids, midpoint, n + 1);
+        bufferPool.unpin(newPageId, true);
+        writeLeafEntries(page, keys, rids, 0, midpoint);
+        page.putInt(NEXT_PAGE, newPageId);
+        bufferPool.unpin(pageId, true);
+        if (nextPage != NO_PAGE) {
+            ByteBuffer next = readNode(nextPage);
+            next.putInt(PREV_PAGE, newPageId);
+            bufferPool.unpin(nextPage, true);
+        }
+
+        // push separators up until a parent has room
+        int sepKey = keys[midpoint];
+        int sepChild = newPageId;
+        for (level = level - 1; level >= 0; level--) {
+            ByteBuffer parent = readNode(path[level]);
+            int numParentKeys = numKeys(parent);
+            int[] parentKeys = new int[numParentKeys + 1];
+            int[] children = new int[numParentKeys + 2];
+            int insertAt = childIdx[level];
+            children[0] = child(parent, 0);
+            for (int i = 0, j = 0; i <= numParentKeys; i++) {
+                if (i == insertAt) {
+                    parentKeys[i] = sepKey;
+                    children[i + 1] = sepChild;
+                } else {
+                    parentKeys[i] = nonLeafKey(parent, j);
+                    children[i + 1] = child(parent, j + 1);
+                    j++;
+                }
+            }
+            if (numParentKeys + 1 <= nonLeafCapacity) {
+                writeNonLeafEntries(parent, parentKeys, children, 0, numParentKeys + 1);
+                bufferPool.unpin(path[level], true);
+                return;
+            }
+            // split nonleaf, the middle key moves up instead of into either page
+            int keyMid = (numParentKeys + 1) / 2;
+            int newParentId = file.allocatePage();
+            ByteBuffer newParent = bufferPool.pinNew(newParentId);
+            writeNonLeafEntries(newParent, parentKeys, children, keyMid + 1, numParentKeys + 1);
+            bufferPool.unpin(newParentId, true);
+            writeNonLeafEntries(parent, parentKeys, children, 0, keyMid);
+            bufferPool.unpin(path[level], true);
+            sepKey = parentKeys[keyMid];
+            sepChild = newParentId;
+        }
+
+        // root was split
+        int newRootId = file.allocatePage();
+        ByteBuffer newRoot = bufferPool.pinNew(newRootId);
+        newRoot.put(TYPE, NON_LEAF);
+        setNumKeys(newRoot, 1);
+        newRoot.putInt(FIRST_CHILD, rootPage);
+        newRoot.putInt(NON_LEAF_HEADER, sepKey);
+        newRoot.putInt(NON_LEAF_HEADER + 4, sepChild);
+        bufferPool.unpin(newRootId, true);
+        rootPage = newRootId;
+        numLevels++;
+        writeHeader();
+    }
+
+    private static void writeLeafEntries(ByteBuffer page, int[] keys, long[] rids, int from, int to) {
+        for (int i = from; i < to; i++) {
+            setLeafEntry(page, i - from, keys[i], rids[i]);
+        }
+        setNumKeys(page, to - from);
+    }
+
+    /**
+     * writes keys[from..to) with the children around them, children[from] becomes the first child
+     */
+    private static void writeNonLeafEntries(ByteBuffer page, int[] keys, int[] children, int from, int to) {
+        clearPage(page);
+        page.put(TYPE, NON_LEAF);
+        setNumKeys(page, to - from);
+        page.putInt(FIRST_CHILD, children[from]);
+        for (int i = from; i < to; i++) {
+            int pos = NON_LEAF_HEADER + (i - from) * NON_LEAF_ENTRY;
+            page.putInt(pos, keys[i]);
+            page.putInt(pos + 4, children[i + 1]);
+        }
+    }
+
+    /**
+     * descends to the leftmost leaf that may hold minKey
+     * @param minKey, key we are looking for
+     * @return, page number of the leaf
+     */
+    private int findLeafPage(int minKey) {
+        numNodesAccessed = 0;
+        int pageId = rootPage;
+        ByteBuffer page = readNode(pageId);
+        while (!isLeaf(page)) {
+            int childPage = child(page, lowerBound(page, minKey));
+            bufferPool.unpin(pageId, false);
+            pageId = childPage;
+            page = readNode(pageId);
+        }
+        bufferPool.unpin(pageId, false);
+        return pageId;
+    }
+
+    /**
+     * traverses to the leaf page and gets all recordBlocks between minKey and maxKey
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, list of recordBlocks accessed
+     */
+    public ArrayList<RecordBlock> searchNodes(int minKey, int maxKey) {
+        ArrayList<RecordBlock> accessedRecords = new ArrayList<>();
+        int pageId = findLeafPage(minKey);
+        // the leaf found was already counted by findLeafPage
+        numNodesAccessed -= 1;
+        while (pageId != NO_PAGE) {
+            ByteBuffer page = readNode(pageId);
+            int n = numKeys(page);
+            int nextPage = page.getInt(NEXT_PAGE);
+            for (int i = lowerBound(page, minKey); i < n; i++) {
+                if (leafKey(page, i) > maxKey) {
+                    nextPage = NO_PAGE;
+                    break;
+                }
+                accessedRecords.add(db.getRecordBlock(leafRid(page, i)));
+            }
+            bufferPool.unpin(pageId, false);
+            pageId = nextPage;
+        }
+        return accessedRecords;
+    }
+
+    /**
+     * removes every entry with key, pages are rewritten in place and never merged
+     * @param key, key to delete
+     * @return, number of entries removed
+     */
+    public int findAndDeleteKey(int key) {
+        int pageId = findLeafPage(key);
+        numNodesAccessed -= 1;
+        int removed = 0;
+        while (pageId != NO_PAGE) {
+            ByteBuffer page = readNode(pageId);
+            int n = numKeys(page);
+            int start = lowerBound(page, key);
+            int end = upperBound(page, key);
+            int nextPage = end < n ? NO_PAGE : page.getInt(NEXT_PAGE);
+            if (end > start) {
+                for (int i = end; i < n; i++) {
+                    setLeafEntry(page, start + i - end, leafKey(page, i), leafRid(page, i));
+                }
+                setNumKeys(page, n - (end - start));
+                removed += end - start;
+            }
+            bufferPool.unpin(pageId, end > start);
+            pageId = nextPage;
+        }
+        numEntries -= removed;
+        return removed;
+    }
+
+    /**
+     * points the entry of a record moved by MemoryPool.compact at its new location
+     * @param key, key of the record
+     * @param oldRid, record id before the move
+     * @param newRid, record id after the move
+     * @return, whether the entry was found
+     */
+    public boolean relocate(int key, long oldRid, long newRid) {
+        int pageId = findLeafPage(key);
+        numNodesAccessed -= 1;
+        while (pageId != NO_PAGE) {
+            ByteBuffer page = readNode(pageId);
+            int n = numKeys(page);
+            int end = upperBound(page, key);
+            int nextPage = end < n ? NO_PAGE : page.getInt(NEXT_PAGE);
+            for (int i = lowerBound(page, key); i < end; i++) {
+                if (leafRid(page, i) == oldRid) {
+                    setLeafEntry(page, i, key, newRid);
+                    bufferPool.unpin(pageId, true);
+                    return true;
+                }
+            }
+            bufferPool.unpin(pageId, false);
+            pageId = nextPage;
+        }
+        return false;
+    }
+
+    /**
+     * points the entries of a step of records moved by MemoryPool.compact at their new locations
+     * moves are grouped by key so the leaves holding a key are read once however many of its records moved
+     * @param keys, keys of the records
+     * @param oldRids, record ids before the moves
+     * @param newRids, record ids after the moves
+     * @param count, number of moves in the arrays
+     * @return, number of entries found
+     */
+    public int relocateAll(int[] keys, long[] oldRids, long[] newRids, int count) {
+        int numFound = 0;
+        MoveGroups groups = new MoveGroups(keys, oldRids, newRids, count);
+        while (groups.next()) {
+            int key = groups.getKey();
+            int numLeft = groups.size();
+            int pageId = findLeafPage(key);
+            numNodesAccessed -= 1;
+            while (pageId != NO_PAGE && numLeft > 0) {
+                ByteBuffer page = readNode(pageId);
+                int n = numKeys(page);
+                int end = upperBound(page, key);
+                int nextPage = end < n ? NO_PAGE : page.getInt(NEXT_PAGE);
+                boolean dirty = false;
+                for (int i = lowerBound(page, key); i < end && numLeft > 0; i++) {
+                    long newRid = groups.find(leafRid(page, i));
+                    if (newRid >= 0) {
+                        setLeafEntry(page, i, key, newRid);
+                        numLeft--;
+                        dirty = true;
+                    }
+                }
+                bufferPool.unpin(pageId, dirty);
+                pageId = nextPage;
+            }
+            numFound += groups.size() - numLeft;
+        }
+        return numFound;
+    }
+
+    /**
+     * writes the header with the current entry count and LSN and closes the index file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        writeHeader();
+        bufferPool.flush();
+        file.close();
+    }
+}
@@ -0,0 +1,172 @@
+package bptree;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * record ids of every record with one key, packed as longs by RecordBlock.toRid instead of one object per record
+ * the first INLINE_CAPACITY ids are kept in an array that grows as needed, longer lists continue in overflow pages
+ * of OVERFLOW_PAGE_SIZE ids, so adding to a popular key never copies its whole list
+ * the sum of the average ratings of the records is kept with the list, so aggregates never read the records
+ */
+public class PostingList {
+    public static final int INLINE_CAPACITY = 64;
+    public static final int OVERFLOW_PAGE_SIZE = 1024;
+
+    private long[] inline;
+    private long[][] overflowPages;
+    private int numOverflowPages;
+    private int size;
+    private double ratingSum;
+    // version of the tree the list belongs to, see LeafNode.getOwnedPostings
+    private int epoch;
+    // overflowPages[0..numSharedPages) are shared with the list this one was copied from
+    private int numSharedPages;
+
+    public PostingList() {
+        this(0);
+    }
+
+    /**
+     * @param epoch, version of the tree the list belongs to
+     */
+    PostingList(int epoch) {
+        this.inline = new long[4];
+        this.overflowPages = null;
+        this.numOverflowPages = 0;
+        this.size = 0;
+        this.ratingSum = 0;
+        this.epoch = epoch;
+        this.numSharedPages = 0;
+    }
+
+    /**
+     * copies the list into a newer version of the tree, the overflow pages themselves are shared until set writes to
+     * one of them, as add only writes past the size the original list stops at
+     * @param epoch, version the copy belongs to
+     * @return, copy of this list
+     */
+    PostingList copy(int epoch) {
+        PostingList list = new PostingList(epoch);
+        list.inline = inline.clone();
+        list.overflowPages = overflowPages == null ? null : overflowPages.clone();
+        list.numOverflowPages = numOverflowPages;
+        list.size = size;
+        list.ratingSum = ratingSum;
+        list.numSharedPages = numOverflowPages;
+        return list;
+    }
+
+    int getEpoch() {
+        return epoch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getRatingSum() {
+        return ratingSum;
+    }
+
+    public int getNumOverflowPages() {
+        return numOverflowPages;
+    }
+
+    /**
+     * @param idx, position in the list
+     * @return, record id at idx
+     */
+    public long get(int idx) {
+        Objects.checkIndex(idx, size);
+        if (idx < INLINE_CAPACITY) return inline[idx];
+        idx -= INLINE_CAPACITY;
+        return overflowPages[idx / OVERFLOW_PAGE_SIZE][idx % OVERFLOW_PAGE_SIZE];
+    }
+
+    /**
+     * replaces the record id at idx with the id of a record with the same average rating, e.g. after it moved
+     * @param idx, position in the list
+     * @param rid, new record id
+     */
+    public void set(int idx, long rid) {
+        Objects.checkIndex(idx, size);
+        if (idx < INLINE_CAPACITY) {
+            inline[idx] = rid;
+            return;
+        }
+        idx -= INLINE_CAPACITY;
+        int page = idx / OVERFLOW_PAGE_SIZE;
+        if (page < numSharedPages) {
+            // records are only set when they move, so the shared pages are all copied at once
+            for (int i = 0; i < numSharedPages; i++) {
+                overflowPages[i] = overflowPages[i].clone();
+            }
+            numSharedPages = 0;
+        }
+        overflowPages[page][idx % OVERFLOW_PAGE_SIZE] = rid;
+    }
+
+    /**
+     * copies the whole list into dest, which must hold at least size() ids
+     * @param dest, array receiving the record ids in order
+     * @return, number of ids copied
+     */
+    int copyTo(long[] dest) {
+        int n = size;
+        System.arraycopy(inline, 0, dest, 0, Math.min(n, INLINE_CAPACITY));
+        for (int copied = INLINE_CAPACITY, page = 0; copied < n; copied += OVERFLOW_PAGE_SIZE, page++) {
+            System.arraycopy(overflowPages[page], 0, dest, copied, Math.min(n - copied, OVERFLOW_PAGE_SIZE));
+        }
+        return n;
+    }
+
+    /**
+     * @param rid, record id to find
+     * @return, position of rid, or -1 if it is not in the list
+     */
+    public int indexOf(long rid) {
+        for (int i = 0; i < size; i++) {
+            if (get(i) == rid) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * appends a record to the list
+     * @param rid, record id of the record
+     * @param avgRating, average rating of the record
+     */
+    public void add(long rid, float avgRating) {
+        if (size < INLINE_CAPACITY) {
+            if (size == inline.length) inline = Arrays.copyOf(inline, Math.min(size * 2, INLINE_CAPACITY));
+            inline[size] = rid;
+        } else {
+            int idx = size - INLINE_CAPACITY;
+            int page = idx / OVERFLOW_PAGE_SIZE;
+            if (page == numOverflowPages) {
+                if (overflowPages == null) overflowPages = new long[4][];
+                if (page == overflowPages.length) overflowPages = Arrays.copyOf(overflowPages, page * 2);
+                overflowPages[numOverflowPages++] = new long[OVERFLOW_PAGE_SIZE];
+            }
+            overflowPages[page][idx % OVERFLOW_PAGE_SIZE] = rid;
+        }
+        size++;
+        ratingSum += avgRating;
+    }
+
+    /**
+     * @return, bytes held by the arrays of this list, not counting object headers
+     */
+    public long getSizeInBytes() {
+        long bytes = (long) inline.length * Long.BYTES;
+        if (overflowPages != null) {
+            bytes += (long) overflowPages.length * Long.BYTES + (long) numOverflowPages * OVERFLOW_PAGE_SIZE * Long.BYTES;
+        }
+        return bytes;
+    }
+}
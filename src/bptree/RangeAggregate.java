@@ -0,0 +1,27 @@
+package bptree;
+
+public class RangeAggregate {
+    private long count;
+    private double ratingSum;
+
+    public RangeAggregate(long count, double ratingSum) {
+        this.count = count;
+        this.ratingSum = ratingSum;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getRatingSum() {
+        return ratingSum;
+    }
+
+    /**
+     * @return, average of average ratings, 0 if there are no records
+     */
+    public float getAvgRating() {
+        if (count == 0) return 0;
+        return (float) (ratingSum / count);
+    }
+}
@@ -0,0 +1,254 @@
+package bptree;
+
+import memorypool.MemoryPool;
+import memorypool.RecordBlock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * a version of a BPTree published by BPTree.publish, read without locks while the tree goes on changing
+ * its nodes are never changed again, as the tree copies them before changing them, apart from the parent and sibling
+ * links, which point into the newest version, so ranges are walked down from the root with a stack of the nodes above
+ * the current leaf instead of along the leaf chain
+ * the record ids in it point into the memory pool, which is not versioned, so a newer version should be published
+ * before records it holds are deleted or moved
+ */
+public class TreeSnapshot {
+    private Node root;
+    private int capacity;
+    private int numNodes;
+    private int numLevels;
+    private MemoryPool db;
+    // nodes accessed by the last search or aggregate through this handle
+    private int numNodesAccessed;
+
+    TreeSnapshot(Node root, int capacity, int numNodes, int numLevels, MemoryPool db) {
+        this.root = root;
+        this.capacity = capacity;
+        this.numNodes = numNodes;
+        this.numLevels = numLevels;
+        this.db = db;
+        this.numNodesAccessed = 0;
+    }
+
+    /**
+     * @return, another handle on the same version, with its own count of nodes accessed
+     */
+    TreeSnapshot handle() {
+        return new TreeSnapshot(root, capacity, numNodes, numLevels, db);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    public int getNumNodesAccessed() {
+        return numNodesAccessed;
+    }
+
+    /**
+     * @return, number of records in this version
+     */
+    public long getNumRecords() {
+        return root == null ? 0 : root.getSubtreeCount();
+    }
+
+    /**
+     * @return, bytes held by the posting lists of all leaves
+     */
+    public long getPostingsSizeInBytes() {
+        return root == null ? 0 : getPostingsSizeInBytes(root);
+    }
+
+    private long getPostingsSizeInBytes(Node node) {
+        long bytes = 0;
+        if (node instanceof LeafNode) {
+            LeafNode leafNode = (LeafNode) node;
+            for (int i = 0; i < leafNode.getNumKeys(); i++) {
+                bytes += leafNode.getPostings(i).getSizeInBytes();
+            }
+            return bytes;
+        }
+        NonLeafNode nonLeafNode = (NonLeafNode) node;
+        for (int i = 0; i < nonLeafNode.getNumChildren(); i++) {
+            bytes += getPostingsSizeInBytes(nonLeafNode.getChild(i));
+        }
+        return bytes;
+    }
+
+    public String getRootContent() {
+        String s = "Root elements: ";
+        if (root == null) return s;
+        for (int i = 0; i < root.getNumKeys(); i++) {
+            s += root.getKey(i) + " ";
+        }
+        return s;
+    }
+
+    /**
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, list of recordBlocks accessed
+     */
+    public ArrayList<RecordBlock> searchNodes(int minKey, int maxKey) {
+        ArrayList<RecordBlock> accessedRecords = new ArrayList<>();
+        Iterator<RecordBlock> it = rangeIterator(minKey, maxKey);
+        while (it.hasNext()) {
+            accessedRecords.add(it.next());
+        }
+        return accessedRecords;
+    }
+
+    /**
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, iterator over recordBlocks with keys between minKey and maxKey in key order
+     */
+    public Iterator<RecordBlock> rangeIterator(int minKey, int maxKey) {
+        return new SnapshotRangeIterator(minKey, maxKey);
+    }
+
+    /**
+     * cursor over the leaves of this version, path[d] is the node at depth d above the current leaf and childIdx[d]
+     * the child followed from it
+     */
+    private class SnapshotRangeIterator implements Iterator<RecordBlock> {
+        private int maxKey;
+        private NonLeafNode[] path;
+        private int[] childIdx;
+        private LeafNode leafNode;
+        private int keyIdx;
+        private PostingList records;
+        private int recordIdx;
+
+        SnapshotRangeIterator(int minKey, int maxKey) {
+            this.maxKey = maxKey;
+            numNodesAccessed = 0;
+            if (root == null || minKey > maxKey) return;
+            path = new NonLeafNode[numLevels];
+            childIdx = new int[numLevels];
+            Node node = root;
+            for (int depth = 0; node instanceof NonLeafNode; depth++) {
+                numNodesAccessed += 1;
+                path[depth] = (NonLeafNode) node;
+                childIdx[depth] = path[depth].upperBound(minKey);
+                node = path[depth].getChild(childIdx[depth]);
+            }
+            numNodesAccessed += 1;
+            leafNode = (LeafNode) node;
+            keyIdx = leafNode.lowerBound(minKey) - 1;
+            advanceKey();
+        }
+
+        /**
+         * @return, leaf after the current one, reached from the nearest node above it with a child further right
+         */
+        private LeafNode nextLeaf() {
+            int depth = numLevels - 2;
+            while (depth >= 0 && childIdx[depth] == path[depth].getNumChildren() - 1) {
+                depth--;
+            }
+            if (depth < 0) return null;
+            childIdx[depth] += 1;
+            Node node = path[depth].getChild(childIdx[depth]);
+            while (node instanceof NonLeafNode) {
+                numNodesAccessed += 1;
+                depth++;
+                path[depth] = (NonLeafNode) node;
+                childIdx[depth] = 0;
+                node = path[depth].getChild(0);
+            }
+            return (LeafNode) node;
+        }
+
+        /**
+         * moves to the next key with records and stops past maxKey
+         */
+        private void advanceKey() {
+            records = null;
+            recordIdx = 0;
+            while (leafNode != null) {
+                keyIdx += 1;
+                if (keyIdx >= leafNode.getNumKeys()) {
+                    leafNode = nextLeaf();
+                    keyIdx = -1;
+                    if (leafNode != null) numNodesAccessed += 1;
+                    continue;
+                }
+                if (leafNode.getKey(keyIdx) > maxKey) {
+                    leafNode = null;
+                    return;
+                }
+                if (!leafNode.getPostings(keyIdx).isEmpty()) {
+                    records = leafNode.getPostings(keyIdx);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return records != null;
+        }
+
+        public RecordBlock next() {
+            if (records == null) throw new NoSuchElementException();
+            RecordBlock rb = db.getRecordBlock(records.get(recordIdx++));
+            if (recordIdx == records.size()) advanceKey();
+            return rb;
+        }
+    }
+
+    /**
+     * counts records with keys between minKey and maxKey and sums their average ratings from the aggregates of this
+     * version, as BPTree.aggregateRange does
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, count and rating sum of the records in range
+     */
+    public RangeAggregate aggregateRange(int minKey, int maxKey) {
+        numNodesAccessed = 0;
+        if (root == null || minKey > maxKey) return new RangeAggregate(0, 0);
+        RangeAggregate upTo = aggregateBefore(maxKey, true);
+        RangeAggregate below = aggregateBefore(minKey, false);
+        return new RangeAggregate(upTo.getCount() - below.getCount(), upTo.getRatingSum() - below.getRatingSum());
+    }
+
+    /**
+     * @param key, key to descend to
+     * @param inclusive, whether records with key itself are included
+     * @return, count and rating sum of records with keys < key, or <= key if inclusive
+     */
+    private RangeAggregate aggregateBefore(int key, boolean inclusive) {
+        long count = 0;
+        double ratingSum = 0;
+        Node node = root;
+        while (node instanceof NonLeafNode) {
+            numNodesAccessed += 1;
+            NonLeafNode currNode = (NonLeafNode) node;
+            int idx = currNode.upperBound(key);
+            for (int i = 0; i < idx; i++) {
+                count += currNode.getChild(i).getSubtreeCount();
+                ratingSum += currNode.getChild(i).getSubtreeRatingSum();
+            }
+            node = currNode.getChild(idx);
+        }
+        numNodesAccessed += 1;
+        LeafNode leafNode = (LeafNode) node;
+        int end = inclusive ? leafNode.upperBound(key) : leafNode.lowerBound(key);
+        for (int i = 0; i < end; i++) {
+            count += leafNode.getPostings(i).size();
+            ratingSum += leafNode.getRatingSum(i);
+        }
+        return new RangeAggregate(count, ratingSum);
+    }
+}
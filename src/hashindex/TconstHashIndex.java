@@ -0,0 +1,229 @@
+package hashindex;
+
+import memorypool.Block;
+import memorypool.MemoryPool;
+import memorypool.RecordBlock;
+import memorypool.SecondaryIndex;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * hash index from tconst to record id, an open addressing table with linear probing over two primitive arrays
+ * each slot stores the hash of tconst and the record id, tconst itself stays in its block and is read back to
+ * confirm a match, so a lookup reads one block unless two tconsts share a full 32 bit hash
+ * the table grows incrementally, when it gets too full a table of twice the size is allocated and every later
+ * operation moves a few slots of the old table over, lookups check both tables until the move is done
+ */
+public class TconstHashIndex implements SecondaryIndex {
+    private static final int EMPTY = 0;
+    private static final int DELETED = 1;
+    // live slots store the hash with its top bit set, so they never equal EMPTY or DELETED
+    private static final int LIVE = Integer.MIN_VALUE;
+    private static final float MAX_LOAD = 0.7f;
+    // number of old table slots moved to the new table per operation while growing
+    private static final int MIGRATE_STEP = 64;
+
+    private MemoryPool db;
+    private Table table;
+    // table being emptied into table while growing, null otherwise
+    private Table oldTable;
+    private int migratePos;
+    private int numBlocksAccessed;
+    private int numProbes;
+    // scratch space for the tconst of a record being added or removed
+    private byte[] tconstBuf = new byte[Block.TCONST_SIZE];
+
+    private static class Table {
+        int[] hashes;
+        long[] rids;
+        int mask;
+        int numLive;
+        // live and deleted slots, which both lengthen probes
+        int numUsed;
+
+        Table(int capacity) {
+            hashes = new int[capacity];
+            rids = new long[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    /**
+     * @param db, memory pool the indexed records are in
+     * @param expectedRecords, number of records to size the table for
+     */
+    public TconstHashIndex(MemoryPool db, int expectedRecords) {
+        this.db = db;
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedRecords) {
+            capacity <<= 1;
+        }
+        this.table = new Table(capacity);
+        this.oldTable = null;
+    }
+
+    public TconstHashIndex(MemoryPool db) {
+        this(db, 0);
+    }
+
+    public int getNumRecords() {
+        return table.numLive + (oldTable == null ? 0 : oldTable.numLive);
+    }
+
+    public int getCapacity() {
+        return table.hashes.length;
+    }
+
+    public boolean isGrowing() {
+        return oldTable != null;
+    }
+
+    public int getNumBlocksAccessed() {
+        return numBlocksAccessed;
+    }
+
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+    /**
+     * FNV-1a over the tconst bytes, followed by a final mix so that similar tconsts spread over the table
+     */
+    private static int hash(byte[] tconst, int len) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < len; i++) {
+            h = (h ^ (tconst[i] & 0xFF)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h | LIVE;
+    }
+
+    private int hashOf(long rid) {
+        Block b = db.getRecordBlock(rid).getBlock();
+        int len = b.getTconstBytes(RecordBlock.ridSlot(rid), tconstBuf);
+        return hash(tconstBuf, len);
+    }
+
+    /**
+     * finds a record by tconst
+     * @param tconst, tconst to find
+     * @return, record id of a record with this tconst, or -1 if there is none
+     */
+    public long get(String tconst) {
+        numBlocksAccessed = 0;
+        numProbes = 0;
+        migrate();
+        byte[] key = tconst.getBytes(StandardCharsets.US_ASCII);
+        int h = hash(key, key.length);
+        long rid = find(table, h, key);
+        if (rid < 0 && oldTable != null) rid = find(oldTable, h, key);
+        return rid;
+    }
+
+    /**
+     * @param tconst, tconst to find
+     * @return, location of a record with this tconst, or null if there is none
+     */
+    public RecordBlock getRecordBlock(String tconst) {
+        long rid = get(tconst);
+        return rid < 0 ? null : db.getRecordBlock(rid);
+    }
+
+    private long find(Table t, int h, byte[] key) {
+        for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+            numProbes++;
+            int stored = t.hashes[i];
+            if (stored == EMPTY) return -1;
+            if (stored != h) continue;
+            long rid = t.rids[i];
+            numBlocksAccessed++;
+            if (db.getRecordBlock(rid).getBlock().tconstEquals(RecordBlock.ridSlot(rid), key, key.length)) return rid;
+        }
+    }
+
+    public void recordWritten(long rid) {
+        migrate();
+        if (oldTable == null && (table.numUsed + 1) > table.hashes.length * MAX_LOAD) {
+            grow();
+        }
+        insert(table, hashOf(rid), rid);
+    }
+
+    public void recordDeleted(long rid) {
+        migrate();
+        int h = hashOf(rid);
+        if (!remove(table, h, rid) && oldTable != null) remove(oldTable, h, rid);
+    }
+
+    public void relocated(int numVotes, long oldRid, long newRid) {
+        migrate();
+        // the record is already at newRid, and its tconst has not changed
+        int h = hashOf(newRid);
+        if (!replace(table, h, oldRid, newRid) && oldTable != null) replace(oldTable, h, oldRid, newRid);
+    }
+
+    private static void insert(Table t, int h, long rid) {
+        int i = h & t.mask;
+        while (t.hashes[i] != EMPTY && t.hashes[i] != DELETED) {
+            i = (i + 1) & t.mask;
+        }
+        if (t.hashes[i] == EMPTY) t.numUsed++;
+        t.hashes[i] = h;
+        t.rids[i] = rid;
+        t.numLive++;
+    }
+
+    private static int indexOf(Table t, int h, long rid) {
+        for (int i = h & t.mask; t.hashes[i] != EMPTY; i = (i + 1) & t.mask) {
+            if (t.hashes[i] == h && t.rids[i] == rid) return i;
+        }
+        return -1;
+    }
+
+    private static boolean remove(Table t, int h, long rid) {
+        int i = indexOf(t, h, rid);
+        if (i < 0) return false;
+        // a deleted marker keeps later slots of the probe sequence reachable
+        t.hashes[i] = DELETED;
+        t.numLive--;
+        return true;
+    }
+
+    private static boolean replace(Table t, int h, long oldRid, long newRid) {
+        int i = indexOf(t, h, oldRid);
+        if (i < 0) return false;
+        t.rids[i] = newRid;
+        return true;
+    }
+
+    /**
+     * starts moving to a table sized for the live entries, twice as large unless many slots are deleted markers
+     */
+    private void grow() {
+        int capacity = table.hashes.length;
+        if (table.numLive + 1 > capacity * MAX_LOAD / 2) capacity <<= 1;
+        oldTable = table;
+        table = new Table(capacity);
+        migratePos = 0;
+    }
+
+    /**
+     * moves the next MIGRATE_STEP slots of the old table to the new one, and drops the old table when it is empty
+     */
+    private void migrate() {
+        if (oldTable == null) return;
+        int end = Math.min(migratePos + MIGRATE_STEP, oldTable.hashes.length);
+        for (int i = migratePos; i < end; i++) {
+            int h = oldTable.hashes[i];
+            if (h != EMPTY && h != DELETED) {
+                insert(table, h, oldTable.rids[i]);
+                oldTable.hashes[i] = DELETED;
+                oldTable.numLive--;
+            }
+        }
+        migratePos = end;
+        if (migratePos == oldTable.hashes.length) oldTable = null;
+    }
+}
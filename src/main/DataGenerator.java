@@ -0,0 +1,266 @@
+package main;
+
+import bptree.BPTree;
+import bptree.KeyRecordPair;
+import memorypool.MemoryPool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * generates tconst, averageRating, numVotes rows for testing at sizes the real data does not reach
+ * rows are drawn from a Random seeded once, so the same seed, distribution and number of distinct keys always
+ * give the same rows, whether they are written to a TSV or straight into a memory pool
+ * the fields of the last generated row are kept in this object like RowParser, so generating a row creates no
+ * objects and tconst can be written with MemoryPool.writeRecord(ByteBuffer, ...)
+ * row i gets tconst tt followed by i + 1 in at least 7 digits, or t followed by 9 digits past 99999999 rows so
+ * that it still fits in Block.TCONST_SIZE
+ */
+public class DataGenerator {
+    public enum Distribution {
+        // numVotes uniform in [1, numDistinctKeys]
+        UNIFORM,
+        // numVotes k in [1, numDistinctKeys] with probability proportional to 1 / k^ZIPF_EXPONENT, so most titles
+        // have few votes like in the real data
+        ZIPF,
+        // numVotes of row i is i + 1, every key is distinct and arrives in order
+        SEQUENTIAL,
+        // DUPLICATE_FRACTION of the rows share DUPLICATE_HOT_KEYS keys, the rest are uniform
+        DUPLICATES
+    }
+
+    public static final long DEFAULT_SEED = 4031;
+    public static final int DEFAULT_DISTINCT_KEYS = 1000000;
+    public static final double ZIPF_EXPONENT = 1.0;
+    public static final int DUPLICATE_HOT_KEYS = 8;
+    public static final double DUPLICATE_FRACTION = 0.9;
+    public static final long MAX_ROWS = 999999999L;
+
+    static Logger logger = Logger.getLogger(Main.class.getName());
+
+    private Distribution distribution;
+    private int numDistinctKeys;
+    private Random random;
+    // cumulative weights of keys 1..numDistinctKeys, only for ZIPF
+    private double[] zipfCdf;
+    private long numRows;
+
+    private byte[] tconst = new byte[10];
+    private ByteBuffer tconstBuf = ByteBuffer.wrap(tconst);
+    private int tconstLen;
+    private float avgRating;
+    // averageRating times 10, ratings have one decimal place like in the real data
+    private int ratingTenths;
+    private int numVotes;
+
+    /**
+     * @param distribution, distribution of numVotes
+     * @param numDistinctKeys, number of possible numVotes values for UNIFORM, ZIPF and DUPLICATES
+     * @param seed, seed of the generated rows
+     */
+    public DataGenerator(Distribution distribution, int numDistinctKeys, long seed) {
+        if (numDistinctKeys < 1) throw new IllegalArgumentException("numDistinctKeys must be positive");
+        this.distribution = distribution;
+        this.numDistinctKeys = numDistinctKeys;
+        this.random = new Random(seed);
+        this.numRows = 0;
+        if (distribution == Distribution.ZIPF) {
+            zipfCdf = new double[numDistinctKeys];
+            double sum = 0;
+            for (int k = 0; k < numDistinctKeys; k++) {
+                sum += 1.0 / Math.pow(k + 1, ZIPF_EXPONENT);
+                zipfCdf[k] = sum;
+            }
+        }
+    }
+
+    public DataGenerator(Distribution distribution, long seed) {
+        this(distribution, DEFAULT_DISTINCT_KEYS, seed);
+    }
+
+    /**
+     * @return, number of rows generated so far
+     */
+    public long getNumRows() {
+        return numRows;
+    }
+
+    public ByteBuffer getTconstBuffer() {
+        return tconstBuf;
+    }
+
+    public int getTconstLen() {
+        return tconstLen;
+    }
+
+    public String getTconst() {
+        return new String(tconst, 0, tconstLen, StandardCharsets.US_ASCII);
+    }
+
+    public float getAvgRating() {
+        return avgRating;
+    }
+
+    public int getNumVotes() {
+        return numVotes;
+    }
+
+    /**
+     * generates the next row, read it through the getters
+     */
+    public void next() {
+        if (numRows >= MAX_ROWS) throw new IllegalStateException("tconst cannot number more than " + MAX_ROWS + " rows");
+        numRows++;
+        encodeTconst(numRows);
+        numVotes = nextKey();
+        ratingTenths = 10 + random.nextInt(91);
+        avgRating = ratingTenths / 10f;
+    }
+
+    private int nextKey() {
+        switch (distribution) {
+            case UNIFORM:
+                return 1 + random.nextInt(numDistinctKeys);
+            case ZIPF:
+                double u = random.nextDouble() * zipfCdf[numDistinctKeys - 1];
+                int lo = 0;
+                int hi = numDistinctKeys - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (zipfCdf[mid] < u) lo = mid + 1;
+                    else hi = mid;
+                }
+                return lo + 1;
+            case SEQUENTIAL:
+                return (int) numRows;
+            case DUPLICATES:
+                if (random.nextDouble() < DUPLICATE_FRACTION) {
+                    return 1 + random.nextInt(Math.min(DUPLICATE_HOT_KEYS, numDistinctKeys));
+                }
+                return 1 + random.nextInt(numDistinctKeys);
+            default:
+                throw new IllegalStateException("Unknown distribution " + distribution);
+        }
+    }
+
+    private void encodeTconst(long id) {
+        int numDigits = 1;
+        for (long rest = id / 10; rest > 0; rest /= 10) {
+            numDigits++;
+        }
+        numDigits = Math.max(7, numDigits);
+        int pos = 0;
+        if (numDigits > 8) {
+            numDigits = 9;
+        } else {
+            tconst[pos++] = 't';
+        }
+        tconst[pos++] = 't';
+        tconstLen = pos + numDigits;
+        for (int i = tconstLen - 1; i >= pos; i--) {
+            tconst[i] = (byte) ('0' + id % 10);
+            id /= 10;
+        }
+    }
+
+    /**
+     * writes the next numRows rows to a TSV with the same header as the real data
+     * @param file, TSV file to create or overwrite
+     * @param numRows, number of rows
+     * @return, number of rows written
+     * @throws IOException if the file cannot be written
+     */
+    public long writeTsv(File file, long numRows) throws IOException {
+        long start = System.nanoTime();
+        byte[] digits = new byte[10];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            out.write("tconst\taverageRating\tnumVotes\n".getBytes(StandardCharsets.US_ASCII));
+            for (long i = 0; i < numRows; i++) {
+                next();
+                out.write(tconst, 0, tconstLen);
+                out.write('\t');
+                writeDigits(out, ratingTenths / 10, digits);
+                out.write('.');
+                out.write('0' + ratingTenths % 10);
+                out.write('\t');
+                writeDigits(out, numVotes, digits);
+                out.write('\n');
+            }
+        }
+        logger.info("Generated " + numRows + " " + distribution + " rows into " + file + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return numRows;
+    }
+
+    private static void writeDigits(OutputStream out, int value, byte[] digits) throws IOException {
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        out.write(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * writes the next numRows rows into a memory pool
+     * @param db, memory pool to write to
+     * @param numRows, number of rows
+     * @return, number of records written, fewer than numRows if the pool ran out of space
+     */
+    public long populate(MemoryPool db, long numRows) {
+        return populate(db, null, numRows);
+    }
+
+    /**
+     * writes the next numRows rows into a memory pool and bulk loads their keys into an empty tree
+     * @param db, memory pool to write to
+     * @param tree, empty tree over db, or null to only write the records
+     * @param numRows, number of rows
+     * @return, number of records written, fewer than numRows if the pool ran out of space
+     */
+    public long populate(MemoryPool db, BPTree tree, long numRows) {
+        long start = System.nanoTime();
+        ArrayList<KeyRecordPair> pairs = tree == null ? null : new ArrayList<>();
+        long numWritten = 0;
+        for (long i = 0; i < numRows; i++) {
+            next();
+            long rid = db.writeRecord(tconstBuf, 0, tconstLen, avgRating, numVotes);
+            if (rid < 0) {
+                logger.warning("Memory pool is full after " + numWritten + " generated rows");
+                break;
+            }
+            if (pairs != null) pairs.add(new KeyRecordPair(numVotes, db.getRecordBlock(rid)));
+            numWritten++;
+        }
+        if (pairs != null) {
+            pairs.sort(Comparator.comparingInt(KeyRecordPair::getKey));
+            tree.bulkLoad(pairs, 1.0f);
+        }
+        logger.info("Generated " + numWritten + " " + distribution + " records in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return numWritten;
+    }
+
+    /**
+     * writes a generated TSV, usage: DataGenerator file numRows [distribution] [seed] [numDistinctKeys]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: DataGenerator file numRows [UNIFORM|ZIPF|SEQUENTIAL|DUPLICATES] [seed] [numDistinctKeys]");
+            return;
+        }
+        Distribution distribution = args.length > 2 ? Distribution.valueOf(args[2].toUpperCase()) : Distribution.ZIPF;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+        int numDistinctKeys = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_DISTINCT_KEYS;
+        new DataGenerator(distribution, numDistinctKeys, seed).writeTsv(new File(args[0]), Long.parseLong(args[1]));
+    }
+}
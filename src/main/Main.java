@@ -4,16 +4,28 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Scanner;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
 import java.util.logging.FileHandler;
 import java.util.logging.SimpleFormatter;
-import memorypool.Record;
+import memorypool.BufferPool;
+import memorypool.ColumnStore;
 import memorypool.MemoryPool;
 import memorypool.RecordBlock;
+import memorypool.RelocationListener;
+import memorypool.ScanResult;
+import memorypool.WriteAheadLog;
 import bptree.BPTree;
+import bptree.CoveringBPTree;
+import bptree.DeleteResult;
+import bptree.KeyRecordPair;
+import bptree.PagedBPTree;
+import bptree.RangeAggregate;
+import bptree.TreeSnapshot;
+import hashindex.TconstHashIndex;
 
 public class Main {
 
@@ -21,6 +33,29 @@ public class Main {
     public static void main(String[] args) {
         // we assume node size is same as block size
         final int BLOCKSIZE = 200;
+        // sort all keys after reading and build the tree bottom up, instead of inserting one key at a time
+        final boolean BULK_LOAD = true;
+        final float FILL_FACTOR = 1.0f;
+        // number of keys per insertBatch call when not bulk loading
+        final int INSERT_BATCH_SIZE = 10000;
+        // also read the TSV when the data file already has records, appending them to it
+        final boolean APPEND = false;
+        // number of threads parsing the TSV, records are still written to the data file by one thread
+        final int LOAD_THREADS = Runtime.getRuntime().availableProcessors();
+        // number of blocks each buffer pool caches, and how it picks a block to evict
+        final int BUFFER_FRAMES = 1024;
+        final BufferPool.Policy BUFFER_POLICY = BufferPool.Policy.CLOCK;
+        // compact the data file after a delete once this fraction of its slots is empty
+        final float COMPACT_THRESHOLD = 0.25f;
+        // most records compaction moves between two queries, so no query waits on a whole compaction
+        final int COMPACT_STEP_MOVES = 4096;
+        // when positive, load this many rows from DataGenerator instead of the TSV, for testing at larger sizes
+        final long GENERATED_ROWS = 0;
+        final DataGenerator.Distribution GENERATED_DISTRIBUTION = DataGenerator.Distribution.ZIPF;
+        // changes to the data file are logged and forced once per this many records or milliseconds
+        final int WAL_GROUP_COMMIT_SIZE = 1024;
+        final long WAL_GROUP_COMMIT_MILLIS = 10;
+        final long WAL_CHECKPOINT_BYTES = 64L << 20;
         FileHandler fh;
         String localDir = System.getProperty("user.dir");
         try {
@@ -42,34 +77,93 @@ public class Main {
             e.printStackTrace();
         }
 
-        MemoryPool db = new MemoryPool(500000000, BLOCKSIZE);
-        BPTree tree = new BPTree(25);
+        MemoryPool db = null;
+        WriteAheadLog wal = null;
+        BPTree tree = null;
+        PagedBPTree pagedTree = null;
+        ColumnStore columns = null;
+        TconstHashIndex tconstIndex = null;
+        CoveringBPTree coveringTree = null;
+        Thread indexLoader = null;
 
         File inputFile = new File(localDir + "/data/data.tsv");
 //        File inputFile = new File(localDir + "/data/data_test.tsv");
         try {
-            Scanner sc = new Scanner(inputFile);
-            sc.nextLine();
-            int numRecords = 0;
-
+            // records persist in the data file, so the TSV only needs to be read into a new one
+            db = MemoryPool.open(localDir + "/data/data.db", 500000000, BLOCKSIZE);
+            // replays changes made since the last checkpoint, e.g. deletes before a crash
+            wal = WriteAheadLog.open(localDir + "/data/data.wal", db,
+                    WAL_GROUP_COMMIT_SIZE, WAL_GROUP_COMMIT_MILLIS, WAL_CHECKPOINT_BYTES);
+            if (db.getNumRecords() > 0) {
+                logger.info("Opened data file with " + db.getNumRecords() + " records");
+            }
+            if (db.getNumRecords() == 0 || APPEND) {
+                if (GENERATED_ROWS > 0) {
+                    new DataGenerator(GENERATED_DISTRIBUTION, DataGenerator.DEFAULT_SEED).populate(db, GENERATED_ROWS);
+                } else {
+                    new TsvLoader(db, LOAD_THREADS).load(inputFile);
+                }
+                // the loaded records are in the data file now, so their log records are not needed
+                wal.checkpoint();
+            }
 
-            while(sc.hasNextLine()) {
-                numRecords++;
-                if (numRecords % 200000 == 0) {
-                    logger.info("Read " + numRecords + " lines...");
+            // the index is built from the records in the data file
+            ArrayList<KeyRecordPair> pairs = new ArrayList<>();
+            for (RecordBlock rb : db.searchBlocks(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                pairs.add(new KeyRecordPair(rb.getNumVotes(), rb));
+            }
+            ArrayList<KeyRecordPair> filePairs = BULK_LOAD ? null : new ArrayList<>(pairs);
+            pairs.sort(Comparator.comparingInt(KeyRecordPair::getKey));
+            // the index is loaded on its own thread, which publishes a version after every batch, so the experiments
+            // answer from the records indexed so far while the rest are still loading
+            final BPTree index = new BPTree(25, db);
+            tree = index;
+            indexLoader = new Thread(() -> {
+                if (BULK_LOAD) {
+                    logger.info("Bulk loading " + pairs.size() + " keys...");
+                    index.bulkLoad(pairs, FILL_FACTOR);
+                } else {
+                    // insert in file order, a batch at a time as an incremental load would arrive
+                    for (int i = 0; i < filePairs.size(); i += INSERT_BATCH_SIZE) {
+                        index.insertBatch(new ArrayList<>(filePairs.subList(i, Math.min(filePairs.size(), i + INSERT_BATCH_SIZE))));
+                        index.publish();
+                    }
                 }
-                String newLine = sc.nextLine();
-                String[] record = newLine.split("\t");
-
-                Record rec = new Record(record[0], Float.parseFloat(String.valueOf(record[1])), Integer.parseInt(String.valueOf(record[2])));
-                db.writeRecord(rec);
-                RecordBlock rb = new RecordBlock(rec, db.getBlock());
-                int key = rec.getNumVotes();
-                tree.insertKey(key, rb);
+                index.publish();
+                logger.info("Index loaded with " + index.snapshot().getNumRecords() + " records");
+            });
+            indexLoader.start();
+
+            // the paged index persists as well, it is only rebuilt when it does not match the data file, which includes
+            // any change replayed from the log, as its pages only reach the disk on close
+            pagedTree = PagedBPTree.open(localDir + "/data/index.db", BLOCKSIZE, db, BUFFER_FRAMES, BUFFER_POLICY);
+            if (pagedTree.getNumEntries() != db.getNumRecords() || pagedTree.getLsn() != wal.getLastLsn()) {
+                logger.info("Building paged index...");
+                pagedTree.setLsn(wal.getLastLsn());
+                pagedTree.bulkLoad(pairs.iterator(), FILL_FACTOR);
+            } else {
+                logger.info("Opened paged index with " + pagedTree.getNumEntries() + " entries");
             }
-            sc.close();
+            // columnar copy of the records for scans that no index covers, kept up to date by the pool like the indexes
+            columns = new ColumnStore(db);
+            db.addSecondaryIndex(columns);
+            // point lookups by tconst, the pool keeps this index up to date on every write and delete
+            tconstIndex = new TconstHashIndex(db, db.getNumRecords());
+            db.addSecondaryIndex(tconstIndex);
+            // (numVotes, avgRating) index that answers the retrieval experiments from its leaves alone
+            coveringTree = new CoveringBPTree(db, 25, false);
+            db.addSecondaryIndex(coveringTree);
+            // data blocks are read through a buffer pool from here on, so experiments report its hits and misses
+            db.setBufferPool(new BufferPool(db, BUFFER_FRAMES, BUFFER_POLICY));
             boolean exit = false;
+            // set once a delete leaves the data file fragmented, cleared when a step has nothing left to move
+            boolean compacting = false;
             while (!exit) {
+                // one step runs before each query, and is published so the query reads the moved records' new ids
+                if (compacting) {
+                    compacting = compact(tree, pagedTree, db, COMPACT_STEP_MOVES) == COMPACT_STEP_MOVES;
+                    tree.publish();
+                }
                 System.out.println("\nRun experiment:");
                 System.out.println("1: Experiment 1");
                 System.out.println("2: Experiment 2");
@@ -78,6 +172,7 @@ public class Main {
                 System.out.println("5: Experiment 5");
                 System.out.println("6: Print tree contents");
                 System.out.println("7: Quit");
+                System.out.println("8: Look up title by tconst");
 
                 Scanner sc2 = new Scanner(System.in);
                 int choice = sc2.nextInt();
@@ -88,25 +183,34 @@ public class Main {
                         break;
                     case 2:
                         logger.info("Starting experiment 2...");
-                        printExperiment2(tree);
+                        printExperiment2(tree.snapshot());
                         break;
                     case 3:
                         logger.info("Starting experiment 3...");
-                        printRetrievalExperiment(tree, db, 500, 500);
+                        printRetrievalExperiment(tree.snapshot(), pagedTree, coveringTree, db, columns, 500, 500);
                         break;
                     case 4:
                         logger.info("Starting experiment 4...");
-                        printRetrievalExperiment(tree, db, 30000, 40000);
+                        printRetrievalExperiment(tree.snapshot(), pagedTree, coveringTree, db, columns, 30000, 40000);
                         break;
                     case 5:
                         logger.info("Starting experiment 5...");
                         logger.info("Enter key to delete: ");
                         int numToDelete = sc2.nextInt();
                         logger.info("Deleting key: " + numToDelete);
-                        printExperiment5(tree, db, numToDelete);
+                        // deletes change the tree itself, so they wait for the load, and publish when done
+                        awaitIndex(indexLoader);
+                        printExperiment5(tree, pagedTree, db, numToDelete);
+                        tree.publish();
+                        if (db.getFragmentation() > COMPACT_THRESHOLD) {
+                            logger.info("Compacting data file, " + String.format("%.1f", db.getFragmentation() * 100)
+                                    + "% of slots empty");
+                            compacting = true;
+                        }
                         break;
                     case 6:
                         logger.info("Printing tree contents...");
+                        awaitIndex(indexLoader);
                         tree.printTree();
                         break;
                     case 7:
@@ -114,6 +218,12 @@ public class Main {
                         exit = true;
                         sc2.close();
                         break;
+                    case 8:
+                        logger.info("Enter tconst to look up: ");
+                        String tconst = sc2.next();
+                        logger.info("Looking up tconst: " + tconst);
+                        printLookupExperiment(tconstIndex, db, tconst);
+                        break;
                     default:
                         logger.warning("Invalid input, please try again");
                 }
@@ -124,47 +234,195 @@ public class Main {
             e.printStackTrace();
         }
         finally {
+            // the loader reads the data file, so it has to finish before the file is closed
+            awaitIndex(indexLoader);
+            try {
+                if (wal != null) wal.checkpoint();
+                if (pagedTree != null) {
+                    // the index matches the pool as of the last logged change
+                    if (wal != null) pagedTree.setLsn(wal.getLastLsn());
+                    pagedTree.close();
+                }
+                if (wal != null) wal.close();
+                if (db != null) db.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
             for (Handler h : logger.getHandlers())
                 h.close();
         }
     }
 
-    public static void printExperiment2(BPTree tree) {
+    /**
+     * waits for the thread loading the index, if it is still running
+     * @param indexLoader, thread loading the index
+     */
+    private static void awaitIndex(Thread indexLoader) {
+        if (indexLoader == null || !indexLoader.isAlive()) return;
+        logger.info("Waiting for the index to finish loading...");
+        try {
+            indexLoader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void printExperiment2(TreeSnapshot tree) {
+        logger.info("Number of records indexed: " + tree.getNumRecords());
         logger.info("Capacity n: " + tree.getCapacity());
         logger.info("Number of nodes: " + tree.getNumNodes());
         logger.info("Number of levels: " + tree.getNumLevels());
+        logger.info("Size of posting lists: " + tree.getPostingsSizeInBytes() + " bytes");
         logger.info(tree.getRootContent());
         return;
     }
 
-    public static void printRetrievalExperiment(BPTree tree, MemoryPool db, int minKey, int maxKey) {
+    public static void printRetrievalExperiment(TreeSnapshot tree, PagedBPTree pagedTree, CoveringBPTree coveringTree,
+                                                MemoryPool db, ColumnStore columns, int minKey, int maxKey) {
+        BufferPool dataPool = db.getBufferPool();
+        BufferPool indexPool = pagedTree.getBufferPool();
+        dataPool.resetStats();
+        logger.info("Number of records indexed (bptree): " + tree.getNumRecords());
         long start1 = System.nanoTime();
         ArrayList<RecordBlock> accessedRecords = tree.searchNodes(minKey, maxKey);
+        float avg1 = db.getAvgOfAvgRatings(accessedRecords);
         long end1 = System.nanoTime();
         logger.info("Number of index nodes accessed (bptree): " + tree.getNumNodesAccessed());
         logger.info("Number of data blocks accessed (bptree): " + accessedRecords.size());
-        logger.info("Average of average ratings (bptree): " + String.format("%.5f", tree.getAvgOfAvgRatings(accessedRecords)));
+        logger.info("Average of average ratings (bptree): " + String.format("%.5f", avg1));
+        printBufferStats("bptree data", dataPool);
         logger.info("Time taken (bptree): " + (end1 - start1));
+        long start4 = System.nanoTime();
+        RangeAggregate aggregate = tree.aggregateRange(minKey, maxKey);
+        long end4 = System.nanoTime();
+        logger.info("Number of index nodes accessed (bptree aggregate): " + tree.getNumNodesAccessed());
+        logger.info("Number of records (bptree aggregate): " + aggregate.getCount());
+        logger.info("Average of average ratings (bptree aggregate): " + String.format("%.5f", aggregate.getAvgRating()));
+        logger.info("Time taken (bptree aggregate): " + (end4 - start4));
+        long start7 = System.nanoTime();
+        RangeAggregate covered = coveringTree.aggregateRange(minKey, maxKey);
+        long end7 = System.nanoTime();
+        logger.info("Number of index nodes accessed (covering index): " + coveringTree.getNumNodesAccessed());
+        logger.info("Average of average ratings (covering index): " + String.format("%.5f", covered.getAvgRating()));
+        logger.info("Time taken (covering index): " + (end7 - start7));
+        dataPool.resetStats();
+        indexPool.resetStats();
+        long start3 = System.nanoTime();
+        ArrayList<RecordBlock> pagedRecords = pagedTree.searchNodes(minKey, maxKey);
+        float avg3 = db.getAvgOfAvgRatings(pagedRecords);
+        long end3 = System.nanoTime();
+        logger.info("Number of index nodes accessed (paged bptree): " + pagedTree.getNumNodesAccessed());
+        logger.info("Average of average ratings (paged bptree): " + String.format("%.5f", avg3));
+        printBufferStats("paged bptree index", indexPool);
+        printBufferStats("paged bptree data", dataPool);
+        logger.info("Time taken (paged bptree): " + (end3 - start3));
+        dataPool.resetStats();
         long start2 = System.nanoTime();
-        ArrayList<Record> records = db.searchBlocks(minKey, maxKey);
+        ArrayList<RecordBlock> records = db.searchBlocks(minKey, maxKey);
         long end2 = System.nanoTime();
         logger.info("Number of data blocks accessed (brute force): " + db.getNumBlocksAccessed());
+        logger.info("Number of data blocks pruned (brute force): " + db.getNumBlocksPruned());
+        printBufferStats("brute force", dataPool);
         logger.info("Average of average ratings (brute force): " + String.format("%.5f", db.getAvgOfAvgRatings(records)));
         logger.info("Time taken (brute force): " + (end2 - start2));
+        long start5 = System.nanoTime();
+        ScanResult scan = db.parallelSearchBlocks(minKey, maxKey, false);
+        long end5 = System.nanoTime();
+        logger.info("Number of data blocks accessed (parallel brute force): " + scan.getNumBlocksAccessed());
+        logger.info("Number of data blocks pruned (parallel brute force): " + scan.getNumBlocksPruned());
+        logger.info("Average of average ratings (parallel brute force): " + String.format("%.5f", scan.getAvgRating()));
+        logger.info("Time taken (parallel brute force): " + (end5 - start5));
+        long start6 = System.nanoTime();
+        ScanResult columnScan = columns.aggregate(minKey, maxKey);
+        long end6 = System.nanoTime();
+        logger.info("Number of segments accessed (column store): " + columnScan.getNumBlocksAccessed());
+        logger.info("Number of segments pruned (column store): " + columnScan.getNumBlocksPruned());
+        logger.info("Average of average ratings (column store): " + String.format("%.5f", columnScan.getAvgRating()));
+        logger.info("Time taken (column store): " + (end6 - start6));
     }
 
-    public static void printExperiment5(BPTree tree, MemoryPool db, int key) {
+    public static void printBufferStats(String label, BufferPool pool) {
+        logger.info("Buffer hits/misses/evictions (" + label + "): " + pool.getNumHits() + "/"
+                + pool.getNumMisses() + "/" + pool.getNumEvictions());
+    }
+
+    public static void printExperiment5(BPTree tree, PagedBPTree pagedTree, MemoryPool db, int key) {
+        // the brute force scan runs first, while the records are still there, and only counts them, as deleting them
+        // here would leave nothing for the indexes to delete
+        long start2 = System.nanoTime();
+        ScanResult scanned = db.parallelSearchBlocks(key, key, false);
+        long end2 = System.nanoTime();
         long start1 = System.nanoTime();
-        tree.findAndDeleteKey(key);
+        DeleteResult deleted = tree.deleteRecords(key);
         long end1 = System.nanoTime();
+        logger.info("Number of records deleted (bptree): " + deleted.getNumRecords());
+        logger.info("Number of index nodes accessed (bptree): " + deleted.getNumNodesAccessed());
+        logger.info("Number of data blocks accessed (bptree): " + deleted.getNumBlocksAccessed());
         logger.info("Number of nodes (bptree): " + tree.getNumNodes());
         logger.info("Number of levels (bptree): " + tree.getNumLevels());
         logger.info("Content of root node (bptree): " + tree.getRootContent());
         logger.info("Time taken (bptree): " + (end1 - start1));
+        pagedTree.getBufferPool().resetStats();
+        long start3 = System.nanoTime();
+        int numDeleted = pagedTree.findAndDeleteKey(key);
+        long end3 = System.nanoTime();
+        logger.info("Number of entries deleted (paged bptree): " + numDeleted);
+        logger.info("Number of index nodes accessed (paged bptree): " + pagedTree.getNumNodesAccessed());
+        printBufferStats("paged bptree index", pagedTree.getBufferPool());
+        logger.info("Time taken (paged bptree): " + (end3 - start3));
+        logger.info("Number of records found (brute force scan, count only): " + scanned.getNumRecords());
+        logger.info("Number of data blocks accessed (brute force scan, count only): " + scanned.getNumBlocksAccessed());
+        logger.info("Number of data blocks pruned (brute force scan, count only): " + scanned.getNumBlocksPruned());
+        logger.info("Time taken (brute force scan, count only): " + (end2 - start2));
+    }
+
+    public static void printLookupExperiment(TconstHashIndex tconstIndex, MemoryPool db, String tconst) {
+        long start1 = System.nanoTime();
+        RecordBlock found = tconstIndex.getRecordBlock(tconst);
+        long end1 = System.nanoTime();
+        logger.info("Record found (hash index): " + formatRecord(found));
+        logger.info("Number of probes (hash index): " + tconstIndex.getNumProbes());
+        logger.info("Number of data blocks accessed (hash index): " + tconstIndex.getNumBlocksAccessed());
+        logger.info("Time taken (hash index): " + (end1 - start1));
         long start2 = System.nanoTime();
-        db.deleteKey(key);
+        RecordBlock scanned = db.searchTconst(tconst);
         long end2 = System.nanoTime();
+        logger.info("Record found (brute force): " + formatRecord(scanned));
         logger.info("Number of data blocks accessed (brute force): " + db.getNumBlocksAccessed());
         logger.info("Time taken (brute force): " + (end2 - start2));
     }
+
+    private static String formatRecord(RecordBlock rb) {
+        if (rb == null) return "none";
+        return rb.getTconst() + ", averageRating " + rb.getAvgRating() + ", numVotes " + rb.getNumVotes();
+    }
+
+    /**
+     * runs one step of compaction, moving at most maxMoves records and pointing both trees at their new locations
+     * @param maxMoves, most records to move
+     * @return, number of records moved, less than maxMoves once the data file is compact
+     */
+    public static int compact(BPTree tree, PagedBPTree pagedTree, MemoryPool db, int maxMoves) {
+        int numBlocks = db.getNumBlocks();
+        long start = System.nanoTime();
+        int numMoved = db.compact(maxMoves, new RelocationListener() {
+            public void relocated(int numVotes, long oldRid, long newRid) {
+                tree.relocate(numVotes, oldRid, newRid);
+                pagedTree.relocate(numVotes, oldRid, newRid);
+            }
+
+            // a key with many moved records is updated once per step instead of once per record
+            public void relocatedAll(int[] numVotes, long[] oldRids, long[] newRids, int count) {
+                tree.relocateAll(numVotes, oldRids, newRids, count);
+                pagedTree.relocateAll(numVotes, oldRids, newRids, count);
+            }
+        });
+        long end = System.nanoTime();
+        logger.info("Number of records moved (compaction step): " + numMoved);
+        logger.info("Number of data blocks (compaction step): " + numBlocks + " -> " + db.getNumBlocks());
+        logger.info("Fraction of slots empty (compaction step): "
+                + String.format("%.1f", db.getFragmentation() * 100) + "%");
+        logger.info("Time taken (compaction step): " + (end - start));
+        return numMoved;
+    }
 }
@@ -0,0 +1,168 @@
+package main;
+
+import java.nio.ByteBuffer;
+
+/**
+ * decodes a tconst, averageRating, numVotes line in place from a byte buffer
+ * the fields of the last parsed line are kept in this object, so parsing a line creates no objects
+ */
+public class RowParser {
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private int tconstOffset;
+    private int tconstLen;
+    private float avgRating;
+    private int numVotes;
+
+    public int getTconstOffset() {
+        return tconstOffset;
+    }
+
+    public int getTconstLen() {
+        return tconstLen;
+    }
+
+    public float getAvgRating() {
+        return avgRating;
+    }
+
+    public int getNumVotes() {
+        return numVotes;
+    }
+
+    /**
+     * parses the line buf[start..end), which must not include its line terminator
+     * @param buf, buffer holding the line
+     * @param start, first byte of the line
+     * @param end, position after the last byte of the line
+     * @return, whether the line has exactly 3 fields with a valid rating and vote count, e.g. false for the header line
+     */
+    public boolean parse(ByteBuffer buf, int start, int end) {
+        if (end > start && buf.get(end - 1) == '\r') end--;
+        int tab1 = indexOfTab(buf, start, end);
+        if (tab1 < 0) return false;
+        int tab2 = indexOfTab(buf, tab1 + 1, end);
+        if (tab2 < 0 || indexOfTab(buf, tab2 + 1, end) >= 0) return false;
+        if (!parseRating(buf, tab1 + 1, tab2)) return false;
+        if (!parseVotes(buf, tab2 + 1, end)) return false;
+        tconstOffset = start;
+        tconstLen = tab1 - start;
+        return true;
+    }
+
+    private static int indexOfTab(ByteBuffer buf, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buf.get(i) == '\t') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * parses [-]digits[.digits] exactly, a rating with an exponent goes to parseRatingExponent and any other byte
+     * rejects the row
+     */
+    private boolean parseRating(ByteBuffer buf, int start, int end) {
+        int pos = start;
+        boolean negative = pos < end && buf.get(pos) == '-';
+        if (negative) pos++;
+        long mantissa = 0;
+        int numDigits = 0;
+        int scale = -1;
+        for (; pos < end; pos++) {
+            byte b = buf.get(pos);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                numDigits++;
+                if (scale >= 0) scale++;
+            } else if (b == '.' && scale < 0) {
+                scale = 0;
+            } else if (b == 'e' || b == 'E') {
+                return parseRatingExponent(buf, start, end);
+            } else {
+                return false;
+            }
+        }
+        if (numDigits == 0) return false;
+        if (numDigits >= POW10.length) return parseRatingExponent(buf, start, end);
+        // mantissa and the power of ten are exact doubles, so the quotient rounds once to double and once to float
+        double value = scale > 0 ? mantissa / POW10[scale] : mantissa;
+        avgRating = (float) (negative ? -value : value);
+        return true;
+    }
+
+    /**
+     * parses [-]digits[.digits][(e|E)[+|-]digits], digits past the 18th significant one only move the exponent
+     */
+    private boolean parseRatingExponent(ByteBuffer buf, int start, int end) {
+        int pos = start;
+        boolean negative = pos < end && buf.get(pos) == '-';
+        if (negative) pos++;
+        long mantissa = 0;
+        int numDigits = 0;
+        int numSignificant = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        for (; pos < end; pos++) {
+            byte b = buf.get(pos);
+            if (b >= '0' && b <= '9') {
+                numDigits++;
+                if (numSignificant < POW10.length - 1) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa > 0) numSignificant++;
+                    if (fraction) exponent--;
+                } else if (!fraction) {
+                    exponent++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (numDigits == 0) return false;
+        if (pos < end) {
+            byte b = buf.get(pos);
+            if (b != 'e' && b != 'E') return false;
+            pos++;
+            boolean negativeExponent = pos < end && buf.get(pos) == '-';
+            if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) pos++;
+            if (pos == end) return false;
+            int explicit = 0;
+            for (; pos < end; pos++) {
+                b = buf.get(pos);
+                if (b < '0' || b > '9') return false;
+                // anything past this is 0 or infinity as a float anyway
+                if (explicit < 1000) explicit = explicit * 10 + (b - '0');
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        double value;
+        if (mantissa == 0) value = 0;
+        else if (exponent >= 0 && exponent < POW10.length) value = mantissa * POW10[exponent];
+        else if (exponent < 0 && -exponent < POW10.length) value = mantissa / POW10[-exponent];
+        else value = mantissa * Math.pow(10, exponent);
+        avgRating = (float) (negative ? -value : value);
+        return true;
+    }
+
+    private boolean parseVotes(ByteBuffer buf, int start, int end) {
+        int pos = start;
+        boolean negative = pos < end && buf.get(pos) == '-';
+        if (negative) pos++;
+        if (pos == end) return false;
+        long value = 0;
+        for (; pos < end; pos++) {
+            byte b = buf.get(pos);
+            if (b < '0' || b > '9') return false;
+            value = value * 10 + (b - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) return false;
+        }
+        if (negative) value = -value;
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) return false;
+        numVotes = (int) value;
+        return true;
+    }
+}
@@ -0,0 +1,209 @@
+package main;
+
+import memorypool.MemoryPool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * loads a tconst, averageRating, numVotes TSV into a memory pool
+ * the file is memory mapped in chunks that end on line boundaries, chunks are parsed on a pool of worker threads
+ * and the parsed rows are written to the memory pool by the calling thread in file order
+ * rows are decoded in place by RowParser and tconst is copied from the mapped chunk into its block, so no objects
+ * are created per row
+ * at most 2 chunks per thread are parsed ahead of the writer, which bounds the memory held by parsed rows
+ */
+public class TsvLoader {
+    // Default number of bytes per chunk, a chunk is extended to the end of the line it stops in
+    public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    private MemoryPool db;
+    private int numThreads;
+    private int chunkSize;
+    private long numRows;
+    private long numSkipped;
+
+    static Logger logger = Logger.getLogger(Main.class.getName());
+
+    /**
+     * @param db, memory pool to write records to
+     * @param numThreads, number of parsing threads
+     * @param chunkSize, approximate number of bytes each thread parses at a time
+     */
+    public TsvLoader(MemoryPool db, int numThreads, int chunkSize) {
+        this.db = db;
+        this.numThreads = Math.max(1, numThreads);
+        this.chunkSize = chunkSize;
+    }
+
+    public TsvLoader(MemoryPool db, int numThreads) {
+        this(db, numThreads, DEFAULT_CHUNK_SIZE);
+    }
+
+    public long getNumRows() {
+        return numRows;
+    }
+
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /**
+     * rows parsed from one chunk, in file order, tconst stays in the chunk and is referred to by position
+     */
+    private static class Batch {
+        MappedByteBuffer chunk;
+        int[] tconstOffsets = new int[1024];
+        int[] tconstLens = new int[1024];
+        float[] avgRatings = new float[1024];
+        int[] numVotes = new int[1024];
+        int size = 0;
+        int numMalformed = 0;
+
+        Batch(MappedByteBuffer chunk) {
+            this.chunk = chunk;
+        }
+
+        void add(RowParser row) {
+            if (size == tconstOffsets.length) {
+                tconstOffsets = Arrays.copyOf(tconstOffsets, size * 2);
+                tconstLens = Arrays.copyOf(tconstLens, size * 2);
+                avgRatings = Arrays.copyOf(avgRatings, size * 2);
+                numVotes = Arrays.copyOf(numVotes, size * 2);
+            }
+            tconstOffsets[size] = row.getTconstOffset();
+            tconstLens[size] = row.getTconstLen();
+            avgRatings[size] = row.getAvgRating();
+            numVotes[size] = row.getNumVotes();
+            size++;
+        }
+    }
+
+    /**
+     * reads every row after the header line of file into the memory pool
+     * @param file, TSV file
+     * @return, number of records written
+     * @throws IOException if the file cannot be read
+     */
+    public long load(File file) throws IOException {
+        if (!file.exists()) throw new FileNotFoundException(file.toString());
+        numRows = 0;
+        numSkipped = 0;
+        long start = System.nanoTime();
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = findChunkBounds(channel);
+            ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+            int next = 0;
+            int numChunks = bounds.length - 1;
+            long nextReport = 200000;
+            while (next < numChunks || !pending.isEmpty()) {
+                while (next < numChunks && pending.size() < 2 * numThreads) {
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[next], bounds[next + 1] - bounds[next]);
+                    pending.add(workers.submit(() -> parseChunk(chunk)));
+                    next++;
+                }
+                Batch batch = pending.poll().get();
+                numSkipped += batch.numMalformed;
+                for (int i = 0; i < batch.size; i++) {
+                    if (db.writeRecord(batch.chunk, batch.tconstOffsets[i], batch.tconstLens[i],
+                            batch.avgRatings[i], batch.numVotes[i]) < 0) {
+                        numSkipped++;
+                    } else {
+                        numRows++;
+                    }
+                }
+                if (numRows >= nextReport) {
+                    logger.info("Read " + numRows + " lines...");
+                    nextReport = (numRows / 200000 + 1) * 200000;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse " + file, e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        logger.info("Loaded " + numRows + " rows in " + (elapsed / 1000000) + " ms ("
+                + (long) (numRows / Math.max(elapsed / 1e9, 1e-9)) + " rows/sec, " + numThreads + " threads)");
+        if (numSkipped > 0) {
+            logger.warning("Skipped " + numSkipped + " malformed or unstorable rows");
+        }
+        return numRows;
+    }
+
+    /**
+     * splits the file into chunks of about chunkSize bytes, each ending just after a newline
+     * @param channel, file to split
+     * @return, chunk start offsets followed by the file size, the header line is not in any chunk
+     * @throws IOException
+     */
+    private long[] findChunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ArrayList<Long> bounds = new ArrayList<>();
+        bounds.add(lineEnd(channel, 0, size));
+        while (bounds.get(bounds.size() - 1) < size) {
+            long pos = bounds.get(bounds.size() - 1) + chunkSize;
+            bounds.add(pos >= size ? size : lineEnd(channel, pos, size));
+        }
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    /**
+     * @return, position just after the first newline at or after pos, or size if there is none
+     */
+    private static long lineEnd(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') return pos + i + 1;
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * parses every line of a chunk, lines that RowParser rejects are counted as malformed
+     * @param chunk, whole lines of the file
+     * @return, parsed rows
+     */
+    private static Batch parseChunk(MappedByteBuffer chunk) {
+        Batch batch = new Batch(chunk);
+        RowParser row = new RowParser();
+        int limit = chunk.limit();
+        int lineStart = 0;
+        for (int pos = 0; pos <= limit; pos++) {
+            if (pos < limit && chunk.get(pos) != '\n') continue;
+            if (pos > lineStart) {
+                if (row.parse(chunk, lineStart, pos)) batch.add(row);
+                else batch.numMalformed++;
+            }
+            lineStart = pos + 1;
+        }
+        return batch;
+    }
+}
@@ -1,15 +1,374 @@
 package memorypool;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * a fixed-size slice of the memory pool's arena
+ * layout: occupancy bitmap of one bit per slot, followed by recordsPerBlk records of
+ * tconst (TCONST_SIZE bytes, zero padded), avgRating (float) and numVotes (int)
+ */
 public class Block {
-    private ArrayList<Record> records;
+    public static final int TCONST_SIZE = 10;
+    public static final int RECORD_SIZE = TCONST_SIZE + 4 + 4;
+    private static final int RATING_OFFSET = TCONST_SIZE;
+    private static final int VOTES_OFFSET = TCONST_SIZE + 4;
 
-    public Block() {
-        this.records = new ArrayList<>();
+    // position of this block in the memory pool
+    private int id;
+    // arena chunk holding this block, and where the block starts in it
+    private ByteBuffer arena;
+    private int offset;
+    private int recordsPerBlk;
+    private int headerSize;
+    // number of slots written so far, slots beyond this have never been used
+    private int numSlotsUsed;
+    // number of slots currently holding a record
+    private int numRecords;
+    // zone map, bounds of numVotes and avgRating over the records in this block, kept on the handle so a scan
+    // can skip the block without reading it
+    private int minVotes;
+    private int maxVotes;
+    private float minRating;
+    private float maxRating;
+    // whether the memory pool has this block on its list of blocks with deleted slots to reuse
+    private boolean onFreeList;
+
+    public Block(int id, ByteBuffer arena, int offset, int recordsPerBlk) {
+        this.id = id;
+        this.arena = arena;
+        this.offset = offset;
+        this.recordsPerBlk = recordsPerBlk;
+        this.headerSize = headerSize(recordsPerBlk);
+        this.numSlotsUsed = 0;
+        this.numRecords = 0;
+        this.onFreeList = false;
+        resetZoneMap();
+    }
+
+    /**
+     * restores numSlotsUsed and numRecords from the occupancy bitmap, for blocks of a reopened data file
+     */
+    void loadOccupancy() {
+        numSlotsUsed = 0;
+        numRecords = 0;
+        for (int slot = 0; slot < recordsPerBlk; slot++) {
+            if (isOccupied(slot)) {
+                numSlotsUsed = slot + 1;
+                numRecords++;
+            }
+        }
+        rebuildZoneMap();
+    }
+
+    private void resetZoneMap() {
+        minVotes = Integer.MAX_VALUE;
+        maxVotes = Integer.MIN_VALUE;
+        minRating = Float.POSITIVE_INFINITY;
+        maxRating = Float.NEGATIVE_INFINITY;
+    }
+
+    private void addToZoneMap(float avgRating, int numVotes) {
+        minVotes = Math.min(minVotes, numVotes);
+        maxVotes = Math.max(maxVotes, numVotes);
+        minRating = Math.min(minRating, avgRating);
+        maxRating = Math.max(maxRating, avgRating);
+    }
+
+    /**
+     * recomputes the zone map from the occupied slots, so bounds tighten again after deletes
+     */
+    void rebuildZoneMap() {
+        resetZoneMap();
+        for (int slot = 0; slot < numSlotsUsed; slot++) {
+            if (isOccupied(slot)) addToZoneMap(getAvgRating(slot), getNumVotes(slot));
+        }
+    }
+
+    /**
+     * @param minVotes, lowest numVotes searching
+     * @param maxVotes, highest numVotes searching
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, false if the zone map rules out every record in the block, e.g. because it is empty
+     */
+    public boolean mayContain(int minVotes, int maxVotes, float minRating, float maxRating) {
+        return numRecords > 0 && this.maxVotes >= minVotes && this.minVotes <= maxVotes
+                && this.maxRating >= minRating && this.minRating <= maxRating;
+    }
+
+    public int getMinVotes() {
+        return minVotes;
+    }
+
+    public int getMaxVotes() {
+        return maxVotes;
+    }
+
+    public float getMinRating() {
+        return minRating;
+    }
+
+    public float getMaxRating() {
+        return maxRating;
+    }
+
+    /**
+     * @param recordsPerBlk, number of record slots in a block
+     * @return, bytes needed for the occupancy bitmap
+     */
+    public static int headerSize(int recordsPerBlk) {
+        return (recordsPerBlk + 7) / 8;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * points a buffer pool view at the block its frame now holds
+     */
+    void setId(int id) {
+        this.id = id;
+    }
+
+    public int getNumSlotsUsed() {
+        return numSlotsUsed;
+    }
+
+    public int getNumRecords() {
+        return numRecords;
+    }
+
+    public boolean isFull() {
+        return numRecords == recordsPerBlk;
+    }
+
+    boolean isOnFreeList() {
+        return onFreeList;
+    }
+
+    void setOnFreeList(boolean onFreeList) {
+        this.onFreeList = onFreeList;
+    }
+
+    /**
+     * @return, first slot without a record, deleted slots are reused before unused ones, or -1 if the block is full
+     */
+    public int freeSlot() {
+        if (numRecords < numSlotsUsed) {
+            for (int slot = 0; slot < numSlotsUsed; slot++) {
+                if (!isOccupied(slot)) return slot;
+            }
+        }
+        return numSlotsUsed < recordsPerBlk ? numSlotsUsed : -1;
+    }
+
+    private int takeFreeSlot() {
+        int slot = freeSlot();
+        numSlotsUsed = Math.max(numSlotsUsed, slot + 1);
+        return slot;
+    }
+
+    public boolean isOccupied(int slot) {
+        return (arena.get(offset + (slot >>> 3)) & (1 << (slot & 7))) != 0;
+    }
+
+    private int recordOffset(int slot) {
+        return offset + headerSize + slot * RECORD_SIZE;
+    }
+
+    public float getAvgRating(int slot) {
+        return arena.getFloat(recordOffset(slot) + RATING_OFFSET);
+    }
+
+    public int getNumVotes(int slot) {
+        return arena.getInt(recordOffset(slot) + VOTES_OFFSET);
+    }
+
+    /**
+     * decodes tconst of the record in slot, this allocates a String so it is kept off the scan paths
+     * @param slot, slot of the record
+     * @return, tconst of the record
+     */
+    public String getTconst(int slot) {
+        int base = recordOffset(slot);
+        byte[] bytes = new byte[TCONST_SIZE];
+        int len = 0;
+        while (len < TCONST_SIZE && arena.get(base + len) != 0) {
+            bytes[len] = arena.get(base + len);
+            len++;
+        }
+        return new String(bytes, 0, len, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * copies tconst of the record in slot into dst without decoding it
+     * @param slot, slot of the record
+     * @param dst, array of at least TCONST_SIZE bytes
+     * @return, length of tconst
+     */
+    public int getTconstBytes(int slot, byte[] dst) {
+        int base = recordOffset(slot);
+        int len = 0;
+        while (len < TCONST_SIZE && arena.get(base + len) != 0) {
+            dst[len] = arena.get(base + len);
+            len++;
+        }
+        return len;
+    }
+
+    /**
+     * compares tconst of the record in slot with tconst[0..len) without decoding it
+     * @param slot, slot of the record
+     * @param tconst, ascii bytes to compare with
+     * @param len, length of tconst
+     * @return, whether they are equal
+     */
+    public boolean tconstEquals(int slot, byte[] tconst, int len) {
+        if (len > TCONST_SIZE) return false;
+        int base = recordOffset(slot);
+        for (int i = 0; i < len; i++) {
+            if (arena.get(base + i) != tconst[i]) return false;
+        }
+        return len == TCONST_SIZE || arena.get(base + len) == 0;
+    }
+
+    /**
+     * copies the zero padded tconst bytes of the record in slot into dst
+     * @param slot, slot of the record
+     * @param dst, destination array
+     * @param dstOffset, position in dst to copy TCONST_SIZE bytes to
+     */
+    void copyTconst(int slot, byte[] dst, int dstOffset) {
+        int base = recordOffset(slot);
+        for (int i = 0; i < TCONST_SIZE; i++) dst[dstOffset + i] = arena.get(base + i);
+    }
+
+    /**
+     * encodes a record into the first free slot
+     * @param tconst, at most TCONST_SIZE ascii characters
+     * @param avgRating, average rating of the record
+     * @param numVotes, number of votes of the record
+     * @return, slot the record was written to
+     */
+    public int appendRecord(String tconst, float avgRating, int numVotes) {
+        int slot = takeFreeSlot();
+        int base = recordOffset(slot);
+        for (int i = 0; i < TCONST_SIZE; i++) {
+            arena.put(base + i, i < tconst.length() ? (byte) tconst.charAt(i) : 0);
+        }
+        arena.putFloat(base + RATING_OFFSET, avgRating);
+        arena.putInt(base + VOTES_OFFSET, numVotes);
+        setOccupied(slot, true);
+        numRecords++;
+        addToZoneMap(avgRating, numVotes);
+        return slot;
+    }
+
+    /**
+     * encodes a record into the first free slot, copying tconst straight from src without decoding it
+     * @param src, buffer holding tconst as ascii bytes
+     * @param tconstOffset, position of tconst in src
+     * @param tconstLen, length of tconst, at most TCONST_SIZE
+     * @param avgRating, average rating of the record
+     * @param numVotes, number of votes of the record
+     * @return, slot the record was written to
+     */
+    public int appendRecord(ByteBuffer src, int tconstOffset, int tconstLen, float avgRating, int numVotes) {
+        int slot = takeFreeSlot();
+        int base = recordOffset(slot);
+        for (int i = 0; i < TCONST_SIZE; i++) {
+            arena.put(base + i, i < tconstLen ? src.get(tconstOffset + i) : 0);
+        }
+        arena.putFloat(base + RATING_OFFSET, avgRating);
+        arena.putInt(base + VOTES_OFFSET, numVotes);
+        setOccupied(slot, true);
+        numRecords++;
+        addToZoneMap(avgRating, numVotes);
+        return slot;
+    }
+
+    /**
+     * copies the record in slot srcSlot of src into a free slot of this block, src is left unchanged
+     * @param src, block holding the record
+     * @param srcSlot, slot of the record in src
+     * @param slot, free slot to copy the record to
+     */
+    void copyRecord(Block src, int srcSlot, int slot) {
+        int base = recordOffset(slot);
+        int srcBase = src.recordOffset(srcSlot);
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            arena.put(base + i, src.arena.get(srcBase + i));
+        }
+        setOccupied(slot, true);
+        numRecords++;
+        numSlotsUsed = Math.max(numSlotsUsed, slot + 1);
+        addToZoneMap(getAvgRating(slot), getNumVotes(slot));
+    }
+
+    /**
+     * copies the encoded record in slot, as laid out in the block
+     * @param slot, slot of the record
+     * @param dst, destination array
+     * @param dstOffset, position in dst to copy RECORD_SIZE bytes to
+     */
+    void getRecordBytes(int slot, byte[] dst, int dstOffset) {
+        int base = recordOffset(slot);
+        for (int i = 0; i < RECORD_SIZE; i++) dst[dstOffset + i] = arena.get(base + i);
+    }
+
+    /**
+     * writes an encoded record into a given slot, replacing any record already in it, for replaying a log
+     * @param slot, slot to write
+     * @param src, record bytes from getRecordBytes
+     * @param srcOffset, position of the RECORD_SIZE bytes in src
+     */
+    void putRecord(int slot, byte[] src, int srcOffset) {
+        int base = recordOffset(slot);
+        for (int i = 0; i < RECORD_SIZE; i++) arena.put(base + i, src[srcOffset + i]);
+        if (isOccupied(slot)) {
+            rebuildZoneMap();
+            return;
+        }
+        setOccupied(slot, true);
+        numRecords++;
+        numSlotsUsed = Math.max(numSlotsUsed, slot + 1);
+        addToZoneMap(getAvgRating(slot), getNumVotes(slot));
+    }
+
+    /**
+     * frees slot, the record bytes stay in place so other slots never move, the slot can be reused by a later write
+     * the zone map is only rebuilt if the record was on one of its bounds, else they are still tight
+     * @param slot, slot of the record to delete
+     */
+    public void deleteRecord(int slot) {
+        if (deleteRecordKeepZoneMap(slot)) rebuildZoneMap();
+    }
+
+    /**
+     * frees slot like deleteRecord but leaves the zone map as it is, bounds wider than needed are still correct,
+     * for deleting many records of a block with one rebuildZoneMap at the end
+     * @param slot, slot of the record to delete
+     * @return, whether the record was on a bound of the zone map, so a rebuild would tighten it
+     */
+    boolean deleteRecordKeepZoneMap(int slot) {
+        if (!isOccupied(slot)) return false;
+        setOccupied(slot, false);
+        numRecords--;
+        while (numSlotsUsed > 0 && !isOccupied(numSlotsUsed - 1)) {
+            numSlotsUsed--;
+        }
+        int numVotes = getNumVotes(slot);
+        float avgRating = getAvgRating(slot);
+        return numVotes == minVotes || numVotes == maxVotes || avgRating == minRating || avgRating == maxRating;
     }
 
-    public ArrayList<Record> getRecords() {
-        return records;
+    private void setOccupied(int slot, boolean occupied) {
+        int pos = offset + (slot >>> 3);
+        byte bits = arena.get(pos);
+        if (occupied) bits |= (1 << (slot & 7));
+        else bits &= ~(1 << (slot & 7));
+        arena.put(pos, bits);
     }
 }
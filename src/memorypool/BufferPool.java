@@ -0,0 +1,326 @@
+package memorypool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * caches pages of a PageStore in a fixed number of frames
+ * callers pin a page to use its frame and unpin it when done, only unpinned frames can be evicted
+ * dirty frames are written back to the store when they are evicted or flushed
+ * the page table is an open addressing table of ints and empty frames are kept on a stack, so a pin allocates nothing
+ * and a miss only searches for a victim once every frame holds a page
+ */
+public class BufferPool {
+    public enum Policy {
+        // second chance, a reference bit per frame and a hand sweeping the frames
+        CLOCK,
+        // evicts the frame whose K-th most recent reference is oldest, frames with fewer than K references first
+        LRU_K
+    }
+
+    private static final int NO_PAGE = -1;
+    private static final int NO_FRAME = -1;
+
+    private PageStore store;
+    private int numFrames;
+    private Policy policy;
+    private int k;
+
+    private ByteBuffer[] frames;
+    private int[] framePage;
+    private int[] pinCount;
+    private boolean[] dirty;
+    // CLOCK state
+    private boolean[] referenced;
+    private int clockHand;
+    // LRU-K state, history[frame][0] is the most recent reference time
+    private long[][] history;
+    private long time;
+    // page number to frame index, linear probing over a power of two number of slots, NO_PAGE marks an empty slot
+    private int[] tablePages;
+    private int[] tableFrames;
+    private int tableMask;
+    // frames holding no page, freeFrames[0..numFreeFrames)
+    private int[] freeFrames;
+    private int numFreeFrames;
+
+    private int numHits;
+    private int numMisses;
+    private int numEvictions;
+
+    /**
+     * @param store, pages to cache
+     * @param numFrames, number of pages held in memory at once
+     * @param policy, eviction policy
+     * @param k, number of references LRU_K looks back, ignored for CLOCK
+     */
+    public BufferPool(PageStore store, int numFrames, Policy policy, int k) {
+        this.store = store;
+        this.numFrames = numFrames;
+        this.policy = policy;
+        this.k = Math.max(1, k);
+        this.frames = new ByteBuffer[numFrames];
+        this.framePage = new int[numFrames];
+        this.pinCount = new int[numFrames];
+        this.dirty = new boolean[numFrames];
+        this.referenced = new boolean[numFrames];
+        this.history = new long[numFrames][this.k];
+        // at most half full, so probe sequences stay short
+        int tableSize = Integer.highestOneBit(Math.max(1, numFrames) * 2) * 2;
+        this.tablePages = new int[tableSize];
+        this.tableFrames = new int[tableSize];
+        this.tableMask = tableSize - 1;
+        Arrays.fill(tablePages, NO_PAGE);
+        this.freeFrames = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            frames[i] = ByteBuffer.allocate(store.getPageSize());
+            framePage[i] = NO_PAGE;
+            // popped from the end, so frame 0 is used first
+            freeFrames[i] = numFrames - 1 - i;
+        }
+        this.numFreeFrames = numFrames;
+        this.clockHand = 0;
+        this.time = 0;
+        resetStats();
+    }
+
+    public BufferPool(PageStore store, int numFrames, Policy policy) {
+        this(store, numFrames, policy, 2);
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getNumHits() {
+        return numHits;
+    }
+
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    public int getNumEvictions() {
+        return numEvictions;
+    }
+
+    /**
+     * zeroes the hit, miss and eviction counters, called before each query that is measured
+     */
+    public void resetStats() {
+        numHits = 0;
+        numMisses = 0;
+        numEvictions = 0;
+    }
+
+    /**
+     * pins a page, reading it from the store if it is not cached
+     * @param pageId, page to pin
+     * @return, frame holding the page, valid until the page is unpinned
+     */
+    public ByteBuffer pin(int pageId) {
+        return frames[pinFrame(pageId, true)];
+    }
+
+    /**
+     * pins a page like pin, for callers that keep their own state per frame
+     * @param pageId, page to pin
+     * @return, index of the frame holding the page, see getFrame
+     */
+    public int pinFrame(int pageId) {
+        return pinFrame(pageId, true);
+    }
+
+    /**
+     * @param frame, index of a frame from pinFrame
+     * @return, the frame's buffer, which stays the same object for the life of the pool
+     */
+    public ByteBuffer getFrame(int frame) {
+        return frames[frame];
+    }
+
+    /**
+     * pins a page that was just allocated, its frame is zeroed instead of read from the store
+     * @param pageId, page to pin
+     * @return, frame for the page, valid until the page is unpinned
+     */
+    public ByteBuffer pinNew(int pageId) {
+        return frames[pinFrame(pageId, false)];
+    }
+
+    private int pinFrame(int pageId, boolean read) {
+        int frame = lookup(pageId);
+        if (frame != NO_FRAME) {
+            numHits++;
+            if (!read) {
+                ByteBuffer buf = frames[frame];
+                for (int i = 0; i < buf.capacity(); i++) buf.put(i, (byte) 0);
+                dirty[frame] = true;
+            }
+        } else {
+            numMisses++;
+            frame = findVictim();
+            evict(frame);
+            if (read) {
+                store.readPage(pageId, frames[frame]);
+            } else {
+                ByteBuffer buf = frames[frame];
+                for (int i = 0; i < buf.capacity(); i++) buf.put(i, (byte) 0);
+                dirty[frame] = true;
+            }
+            framePage[frame] = pageId;
+            insert(pageId, frame);
+            for (int i = 0; i < k; i++) history[frame][i] = 0;
+        }
+        pinCount[frame]++;
+        recordReference(frame);
+        return frame;
+    }
+
+    /**
+     * @param pageId, a pinned page
+     * @param isDirty, whether the caller modified the frame
+     */
+    public void unpin(int pageId, boolean isDirty) {
+        int frame = lookup(pageId);
+        if (frame == NO_FRAME || pinCount[frame] == 0) {
+            throw new IllegalStateException("Page " + pageId + " is not pinned");
+        }
+        pinCount[frame]--;
+        dirty[frame] |= isDirty;
+    }
+
+    private void recordReference(int frame) {
+        referenced[frame] = true;
+        time++;
+        long[] h = history[frame];
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = time;
+    }
+
+    private int slotOf(int pageId) {
+        // fibonacci hashing, consecutive page numbers land far apart
+        return (int) ((pageId * 0x9E3779B97F4A7C15L) >>> 32) & tableMask;
+    }
+
+    /**
+     * @return, frame holding pageId, or NO_FRAME if it is not cached
+     */
+    private int lookup(int pageId) {
+        for (int slot = slotOf(pageId); tablePages[slot] != NO_PAGE; slot = (slot + 1) & tableMask) {
+            if (tablePages[slot] == pageId) return tableFrames[slot];
+        }
+        return NO_FRAME;
+    }
+
+    private void insert(int pageId, int frame) {
+        int slot = slotOf(pageId);
+        while (tablePages[slot] != NO_PAGE) slot = (slot + 1) & tableMask;
+        tablePages[slot] = pageId;
+        tableFrames[slot] = frame;
+    }
+
+    private void remove(int pageId) {
+        int slot = slotOf(pageId);
+        while (tablePages[slot] != pageId) slot = (slot + 1) & tableMask;
+        // shifts later entries of the probe sequence back, so lookups never need tombstones
+        int next = (slot + 1) & tableMask;
+        while (tablePages[next] != NO_PAGE) {
+            int home = slotOf(tablePages[next]);
+            // the entry at next may move to slot if slot lies cyclically in [home, next)
+            if (((next - home) & tableMask) >= ((next - slot) & tableMask)) {
+                tablePages[slot] = tablePages[next];
+                tableFrames[slot] = tableFrames[next];
+                slot = next;
+            }
+            next = (next + 1) & tableMask;
+        }
+        tablePages[slot] = NO_PAGE;
+    }
+
+    /**
+     * @return, an empty frame if there is one, else an unpinned frame chosen by the policy
+     */
+    private int findVictim() {
+        if (numFreeFrames > 0) return freeFrames[--numFreeFrames];
+        if (policy == Policy.CLOCK) {
+            // two sweeps clear every reference bit, so an unpinned frame is found by then if there is one
+            for (int step = 0; step < 2 * numFrames; step++) {
+                int frame = clockHand;
+                clockHand = (clockHand + 1) % numFrames;
+                if (pinCount[frame] > 0) continue;
+                if (referenced[frame]) {
+                    referenced[frame] = false;
+                    continue;
+                }
+                return frame;
+            }
+        } else {
+            int victim = -1;
+            for (int i = 0; i < numFrames; i++) {
+                if (pinCount[i] > 0) continue;
+                // a frame with fewer than k references has an infinite backward distance, i.e. history 0
+                if (victim == -1 || history[i][k - 1] < history[victim][k - 1]
+                        || (history[i][k - 1] == history[victim][k - 1] && history[i][0] < history[victim][0])) {
+                    victim = i;
+                }
+            }
+            if (victim != -1) return victim;
+        }
+        throw new IllegalStateException("All " + numFrames + " frames are pinned");
+    }
+
+    private void evict(int frame) {
+        if (framePage[frame] == NO_PAGE) return;
+        if (dirty[frame]) {
+            store.writePage(framePage[frame], frames[frame]);
+        }
+        remove(framePage[frame]);
+        framePage[frame] = NO_PAGE;
+        dirty[frame] = false;
+        referenced[frame] = false;
+        numEvictions++;
+    }
+
+    /**
+     * drops a cached page without writing it back, used when the store was written past the pool
+     * @param pageId, page to drop, which must not be pinned
+     */
+    public void invalidate(int pageId) {
+        int frame = lookup(pageId);
+        if (frame == NO_FRAME) return;
+        if (pinCount[frame] > 0) {
+            throw new IllegalStateException("Page " + pageId + " is pinned");
+        }
+        remove(pageId);
+        framePage[frame] = NO_PAGE;
+        dirty[frame] = false;
+        referenced[frame] = false;
+        freeFrames[numFreeFrames++] = frame;
+    }
+
+    /**
+     * drops every cached page without writing it back, no page may be pinned
+     */
+    public void clear() {
+        for (int i = 0; i < numFrames; i++) {
+            if (framePage[i] != NO_PAGE) invalidate(framePage[i]);
+        }
+    }
+
+    /**
+     * writes every dirty frame back to the store
+     */
+    public void flush() {
+        for (int i = 0; i < numFrames; i++) {
+            if (framePage[i] != NO_PAGE && dirty[i]) {
+                store.writePage(framePage[i], frames[i]);
+                dirty[i] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package memorypool;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * read optimized columnar copy of a memory pool
+ * records are grouped into segments of SEGMENT_SIZE rows, each segment keeps numVotes, avgRating, tconst and the
+ * record id in separate primitive arrays, so a filter or aggregate is a tight loop over one or two arrays that the
+ * JIT can unroll and vectorize, instead of decoding the pool one record at a time
+ * registered with MemoryPool.addSecondaryIndex, the pool hands it every write, delete and compaction move, a new
+ * record fills the first segment with room, a deleted one is replaced by the last row of its segment
+ */
+public class ColumnStore implements SecondaryIndex {
+    public static final int SEGMENT_SIZE = 1 << 16;
+
+    private MemoryPool db;
+    private ArrayList<Segment> segments;
+    private int numRecords;
+    // position of each record as segment * SEGMENT_SIZE + row, indexed by block id then slot, -1 for no record
+    private ArrayList<int[]> positions;
+    // segments before this one are full
+    private int firstWithRoom;
+
+    /**
+     * one run of up to SEGMENT_SIZE records, stored column by column, with a zone map over the segment
+     */
+    private static class Segment {
+        int size = 0;
+        int[] numVotes = new int[SEGMENT_SIZE];
+        float[] avgRatings = new float[SEGMENT_SIZE];
+        // tconst of row i is tconsts[i * TCONST_SIZE ..], zero padded like in a block
+        byte[] tconsts = new byte[SEGMENT_SIZE * Block.TCONST_SIZE];
+        long[] rids = new long[SEGMENT_SIZE];
+        int minVotes = Integer.MAX_VALUE;
+        int maxVotes = Integer.MIN_VALUE;
+        float minRating = Float.POSITIVE_INFINITY;
+        float maxRating = Float.NEGATIVE_INFINITY;
+        // a removed row was on a bound of the zone map, so it can be tightened before the next scan
+        boolean stale = false;
+
+        boolean isFull() {
+            return size == SEGMENT_SIZE;
+        }
+
+        void add(Block b, int slot) {
+            int votes = b.getNumVotes(slot);
+            float rating = b.getAvgRating(slot);
+            numVotes[size] = votes;
+            avgRatings[size] = rating;
+            b.copyTconst(slot, tconsts, size * Block.TCONST_SIZE);
+            rids[size] = RecordBlock.toRid(b.getId(), slot);
+            minVotes = Math.min(minVotes, votes);
+            maxVotes = Math.max(maxVotes, votes);
+            minRating = Math.min(minRating, rating);
+            maxRating = Math.max(maxRating, rating);
+            size++;
+        }
+
+        /**
+         * moves the last row into row, bounds wider than needed are still correct so they are only marked stale
+         * @param row, row to remove
+         * @return, record id of the row that moved into row, or -1 if row was the last one
+         */
+        long remove(int row) {
+            int votes = numVotes[row];
+            float rating = avgRatings[row];
+            stale |= votes == minVotes || votes == maxVotes || rating == minRating || rating == maxRating;
+            size--;
+            if (row == size) return -1;
+            numVotes[row] = numVotes[size];
+            avgRatings[row] = avgRatings[size];
+            System.arraycopy(tconsts, size * Block.TCONST_SIZE, tconsts, row * Block.TCONST_SIZE, Block.TCONST_SIZE);
+            rids[row] = rids[size];
+            return rids[row];
+        }
+
+        void rebuildZoneMap() {
+            minVotes = Integer.MAX_VALUE;
+            maxVotes = Integer.MIN_VALUE;
+            minRating = Float.POSITIVE_INFINITY;
+            maxRating = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                minVotes = Math.min(minVotes, numVotes[i]);
+                maxVotes = Math.max(maxVotes, numVotes[i]);
+                minRating = Math.min(minRating, avgRatings[i]);
+                maxRating = Math.max(maxRating, avgRatings[i]);
+            }
+            stale = false;
+        }
+
+        boolean mayContain(int minVotes, int maxVotes, float minRating, float maxRating) {
+            if (stale) rebuildZoneMap();
+            return size > 0 && this.maxVotes >= minVotes && this.minVotes <= maxVotes
+                    && this.maxRating >= minRating && this.minRating <= maxRating;
+        }
+    }
+
+    /**
+     * creates an empty copy, it is filled with the records of db when registered with db.addSecondaryIndex
+     * @param db, memory pool to copy
+     */
+    public ColumnStore(MemoryPool db) {
+        this.db = db;
+        this.segments = new ArrayList<>();
+        this.numRecords = 0;
+        this.positions = new ArrayList<>();
+        this.firstWithRoom = 0;
+    }
+
+    private int positionOf(long rid) {
+        int blockId = RecordBlock.ridBlockId(rid);
+        if (blockId >= positions.size()) return -1;
+        return positions.get(blockId)[RecordBlock.ridSlot(rid)];
+    }
+
+    private void setPosition(long rid, int pos) {
+        int blockId = RecordBlock.ridBlockId(rid);
+        while (blockId >= positions.size()) {
+            int[] slots = new int[db.getRecordsPerBlk()];
+            Arrays.fill(slots, -1);
+            positions.add(slots);
+        }
+        positions.get(blockId)[RecordBlock.ridSlot(rid)] = pos;
+    }
+
+    public void recordWritten(long rid) {
+        while (firstWithRoom < segments.size() && segments.get(firstWithRoom).isFull()) {
+            firstWithRoom++;
+        }
+        if (firstWithRoom == segments.size()) segments.add(new Segment());
+        Segment seg = segments.get(firstWithRoom);
+        setPosition(rid, firstWithRoom * SEGMENT_SIZE + seg.size);
+        seg.add(db.getRecordBlock(rid).getBlock(), RecordBlock.ridSlot(rid));
+        numRecords++;
+    }
+
+    public void recordDeleted(long rid) {
+        int pos = positionOf(rid);
+        if (pos < 0) return;
+        int segIdx = pos / SEGMENT_SIZE;
+        int row = pos % SEGMENT_SIZE;
+        long moved = segments.get(segIdx).remove(row);
+        if (moved >= 0) setPosition(moved, pos);
+        setPosition(rid, -1);
+        firstWithRoom = Math.min(firstWithRoom, segIdx);
+        numRecords--;
+    }
+
+    public void relocated(int numVotes, long oldRid, long newRid) {
+        // the record keeps its row, only the record id stored in it changes
+        int pos = positionOf(oldRid);
+        if (pos < 0) return;
+        segments.get(pos / SEGMENT_SIZE).rids[pos % SEGMENT_SIZE] = newRid;
+        setPosition(oldRid, -1);
+        setPosition(newRid, pos);
+    }
+
+    public int getNumRecords() {
+        return numRecords;
+    }
+
+    public int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * count and sum of avgRating of records with numVotes in [minKey, maxKey]
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, aggregate of the matching records, its block counts are segment counts
+     */
+    public ScanResult aggregate(int minKey, int maxKey) {
+        ScanResult result = new ScanResult(false);
+        for (Segment seg : segments) {
+            if (!seg.mayContain(minKey, maxKey, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY)) {
+                result.addBlockPruned();
+                continue;
+            }
+            result.addBlockAccessed();
+            int[] votes = seg.numVotes;
+            float[] ratings = seg.avgRatings;
+            int n = seg.size;
+            int count = 0;
+            double sum = 0;
+            // branch free, so the loop does not stall on mispredicted comparisons
+            for (int i = 0; i < n; i++) {
+                int v = votes[i];
+                int hit = (v >= minKey & v <= maxKey) ? 1 : 0;
+                count += hit;
+                sum += hit * ratings[i];
+            }
+            result.addAggregate(count, sum);
+        }
+        return result;
+    }
+
+    /**
+     * records with numVotes in [minVotes, maxVotes] and avgRating in [minRating, maxRating]
+     * @param minVotes, lowest numVotes searching
+     * @param maxVotes, highest numVotes searching
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, locations of the matching records, its block counts are segment counts
+     */
+    public ScanResult search(int minVotes, int maxVotes, float minRating, float maxRating) {
+        ScanResult result = new ScanResult(true);
+        for (Segment seg : segments) {
+            if (!seg.mayContain(minVotes, maxVotes, minRating, maxRating)) {
+                result.addBlockPruned();
+                continue;
+            }
+            result.addBlockAccessed();
+            int[] votes = seg.numVotes;
+            float[] ratings = seg.avgRatings;
+            int n = seg.size;
+            for (int i = 0; i < n; i++) {
+                int v = votes[i];
+                float r = ratings[i];
+                if (v >= minVotes & v <= maxVotes & r >= minRating & r <= maxRating) {
+                    result.addRecord(db.getRecordBlock(seg.rids[i]), r);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, locations of records with numVotes in [minKey, maxKey]
+     */
+    public ScanResult search(int minKey, int maxKey) {
+        return search(minKey, maxKey, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * finds a record by tconst, comparing the packed tconst column byte by byte without decoding it
+     * @param tconst, tconst to find
+     * @return, record id of the first record with this tconst, or -1 if there is none
+     */
+    public long findTconst(String tconst) {
+        byte[] key = tconst.getBytes(StandardCharsets.US_ASCII);
+        if (key.length > Block.TCONST_SIZE) return -1;
+        for (Segment seg : segments) {
+            byte[] tconsts = seg.tconsts;
+            for (int i = 0; i < seg.size; i++) {
+                int base = i * Block.TCONST_SIZE;
+                int j = 0;
+                while (j < key.length && tconsts[base + j] == key[j]) j++;
+                if (j == key.length && (j == Block.TCONST_SIZE || tconsts[base + j] == 0)) return seg.rids[i];
+            }
+        }
+        return -1;
+    }
+}
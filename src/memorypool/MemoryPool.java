@@ -2,10 +2,38 @@ package memorypool;
 
 import main.Main;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
-public class MemoryPool {
+public class MemoryPool implements PageStore {
+    // Size of arena chunks that blocks are carved out of
+    private static final int CHUNK_SIZE = 1 << 20;
+    // Parallel scans split blkList until a task has at most this many blocks
+    private static final int SCAN_TASK_BLOCKS = 1024;
+    // Compaction picks and logs this many moves at a time, so a logged pool waits for the disk once per batch
+    private static final int COMPACT_BATCH_SIZE = 4096;
+    // Data file header: magic, blkSize, recordsPerBlk, numAllocatedBlk, checkpoint LSN
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x43345A31;
+    private static final int HEADER_BLKSIZE = 4;
+    private static final int HEADER_RECORDS_PER_BLK = 8;
+    private static final int HEADER_NUM_BLOCKS = 12;
+    private static final int HEADER_CHECKPOINT_LSN = 16;
+
     // Size of Memory
     private int poolSize;
     // Size of Block
@@ -14,24 +42,37 @@ public class MemoryPool {
     private int numAllocatedBlk;
     // Number of blocks remaining
     private int numRemainingBlk;
-    // A counter to check if a block is full
-    private int recordCounter = 0;
     // Size of a record in bytes
     private int recordSize;
 
-    // A counter to check if a block worth of records has been deleted
-    private int deletedRecords = 0;
-
     // Number of records per block
     private int recordsPerBlk;
     // Total number of records in the DB
     private int totalNumRecords;
 
+    // Direct buffers holding the blocks, each chunk holds blocksPerChunk blocks back to back
+    private ArrayList<ByteBuffer> arena;
+    private int blocksPerChunk;
+    // Data file the arena is mapped from, null when the pool only lives in memory
+    private FileChannel channel;
+    private MappedByteBuffer header;
     // A list containing all the allocated blocks
     private ArrayList<Block> blkList;
-    // Current block that is being filled. Once this block is filled, it will pushed into the blkLis and will be reset
+    // Current block that is being filled. Once this block is filled, a new block will be allocated
     private Block blk;
+    // Blocks with deleted slots, writes fill these before the current block
+    private ArrayDeque<Block> freeBlocks;
     private int numBlocksAccessed;
+    // Number of blocks the last scan skipped using their zone maps, without reading them
+    private int numBlocksPruned;
+    // Cache that reads go through when set, blocks are its pages and writes go to the arena and invalidate them
+    private BufferPool bufferPool;
+    // one view per buffer pool frame, reused for whichever block the frame holds
+    private Block[] frameViews;
+    // Indexes kept up to date on every write, delete and compaction
+    private ArrayList<SecondaryIndex> secondaryIndexes;
+    // Log every write, delete and compaction move is appended to when set
+    private WriteAheadLog wal;
 
     static Logger logger = Logger.getLogger(Main.class.getName());
 
@@ -41,83 +82,567 @@ public class MemoryPool {
      * @param blkSize
      */
     public MemoryPool(int poolSize, int blkSize) {
+        this(poolSize, blkSize, null);
+        allocateBlock();
+    }
+
+    private MemoryPool(int poolSize, int blkSize, FileChannel channel) {
         this.poolSize = poolSize;
         this.blkSize = blkSize;
-        this.numAllocatedBlk = 1;
+        this.numAllocatedBlk = 0;
         this.numRemainingBlk = (int) Math.floor(poolSize/blkSize);
-        this.recordSize = 4 + 4 + 9;
-        this.recordsPerBlk = (int) Math.floor(blkSize/(4 + 4 + 9));
-        this.blk = new Block();
+        this.recordSize = Block.RECORD_SIZE;
+        this.recordsPerBlk = computeRecordsPerBlk(blkSize);
+        this.arena = new ArrayList<>();
+        this.blocksPerChunk = Math.max(1, CHUNK_SIZE / blkSize);
         this.blkList = new ArrayList<Block>();
+        this.freeBlocks = new ArrayDeque<>();
+        this.secondaryIndexes = new ArrayList<>();
         this.totalNumRecords = 0;
         this.numBlocksAccessed = 0;
+        this.numBlocksPruned = 0;
+        this.channel = channel;
+        this.header = null;
+    }
+
+    /**
+     * opens a database backed by a memory mapped data file, creating the file if it does not exist
+     * blocks of an existing file are mapped back in place instead of being reloaded
+     * @param path, data file
+     * @param poolSize
+     * @param blkSize, must match the block size the file was created with
+     * @return, the opened memory pool
+     * @throws IOException if the file cannot be opened or was created with a different block size
+     */
+    public static MemoryPool open(String path, int poolSize, int blkSize) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(path),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        MemoryPool pool = new MemoryPool(poolSize, blkSize, channel);
+        boolean isNew = channel.size() == 0;
+        pool.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        if (isNew) {
+            pool.header.putInt(0, MAGIC);
+            pool.header.putInt(HEADER_BLKSIZE, blkSize);
+            pool.header.putInt(HEADER_RECORDS_PER_BLK, pool.recordsPerBlk);
+            pool.header.putInt(HEADER_NUM_BLOCKS, 0);
+            pool.allocateBlock();
+            return pool;
+        }
+
+        if (pool.header.getInt(0) != MAGIC || pool.header.getInt(HEADER_BLKSIZE) != blkSize
+                || pool.header.getInt(HEADER_RECORDS_PER_BLK) != pool.recordsPerBlk) {
+            channel.close();
+            throw new IOException("Data file " + path + " was not created with block size " + blkSize);
+        }
+        int numBlocks = pool.header.getInt(HEADER_NUM_BLOCKS);
+        for (int i = 0; i < numBlocks; i++) {
+            Block b = pool.mapBlock(i);
+            b.loadOccupancy();
+            pool.blkList.add(b);
+            pool.trackFreeSlots(b);
+            pool.totalNumRecords += b.getNumRecords();
+        }
+        pool.blk = pool.blkList.get(numBlocks - 1);
+        pool.numAllocatedBlk = numBlocks;
+        pool.numRemainingBlk -= numBlocks;
+        return pool;
+    }
+
+    /**
+     * creates the block handle for block number id, mapping or allocating its arena chunk if needed
+     * @param id, block number
+     * @return, block handle
+     */
+    private Block mapBlock(int id) {
+        int chunkIdx = id / blocksPerChunk;
+        if (chunkIdx == arena.size()) {
+            int chunkBytes = blocksPerChunk * blkSize;
+            if (channel == null) {
+                arena.add(ByteBuffer.allocateDirect(chunkBytes));
+            } else {
+                try {
+                    arena.add(channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) chunkIdx * chunkBytes, chunkBytes));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        int offset = (id % blocksPerChunk) * blkSize;
+        return new Block(id, arena.get(chunkIdx), offset, recordsPerBlk);
+    }
+
+    /**
+     * writes mapped blocks back to the data file and closes it, does nothing for an in memory pool
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (channel == null) return;
+        for (ByteBuffer chunk : arena) {
+            ((MappedByteBuffer) chunk).force();
+        }
+        header.force();
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * @param blkSize, size of a block in bytes
+     * @return, most records that fit in a block along with their occupancy bits
+     */
+    private static int computeRecordsPerBlk(int blkSize) {
+        int n = blkSize / Block.RECORD_SIZE;
+        while (n > 0 && n * Block.RECORD_SIZE + Block.headerSize(n) > blkSize) {
+            n--;
+        }
+        return n;
+    }
+
+    public int getNumRecords() {
+        return totalNumRecords;
+    }
+
+    int getRecordsPerBlk() {
+        return recordsPerBlk;
+    }
+
+    public int getNumBlocks() {
+        return blkList.size();
     }
 
     public int getNumBlocksAccessed() {
         return numBlocksAccessed;
     }
 
+    public int getNumBlocksPruned() {
+        return numBlocksPruned;
+    }
+
+    public int getPageSize() {
+        return blkSize;
+    }
+
+    /**
+     * copies block pageId out of the arena
+     * @param pageId, block number
+     * @param dst, buffer of at least blkSize bytes
+     */
+    public void readPage(int pageId, ByteBuffer dst) {
+        ByteBuffer src = arena.get(pageId / blocksPerChunk).duplicate();
+        int offset = (pageId % blocksPerChunk) * blkSize;
+        src.limit(offset + blkSize).position(offset);
+        dst.clear();
+        dst.put(src);
+        dst.clear();
+    }
+
+    /**
+     * copies a page back into block pageId of the arena
+     * @param pageId, block number
+     * @param src, block contents
+     */
+    public void writePage(int pageId, ByteBuffer src) {
+        ByteBuffer dst = arena.get(pageId / blocksPerChunk).duplicate();
+        dst.position((pageId % blocksPerChunk) * blkSize);
+        src.clear().limit(blkSize);
+        dst.put(src);
+        src.clear();
+    }
+
+    /**
+     * routes reads of searchBlocks and getAvgOfAvgRatings through a buffer pool, so they report its hits and misses
+     * @param bufferPool, pool created over this memory pool, or null to read the arena directly
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.frameViews = bufferPool == null ? null : new Block[bufferPool.getNumFrames()];
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * registers an index to maintain from now on, every record already in the pool is added to it first
+     * @param index, index over this pool's records
+     */
+    public void addSecondaryIndex(SecondaryIndex index) {
+        for (Block b : blkList) {
+            for (int slot = 0; slot < b.getNumSlotsUsed(); slot++) {
+                if (b.isOccupied(slot)) index.recordWritten(RecordBlock.toRid(b.getId(), slot));
+            }
+        }
+        secondaryIndexes.add(index);
+    }
+
+    private void notifyWritten(long rid) {
+        if (wal != null) wal.logWrite(rid);
+        for (SecondaryIndex index : secondaryIndexes) {
+            index.recordWritten(rid);
+        }
+    }
+
+    private void notifyDeleted(long rid) {
+        if (wal != null) wal.logDelete(rid);
+        for (SecondaryIndex index : secondaryIndexes) {
+            index.recordDeleted(rid);
+        }
+    }
+
+    void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * @param rid, record id of an occupied slot
+     * @param dst, destination array
+     * @param dstOffset, position in dst to copy Block.RECORD_SIZE bytes to
+     */
+    void getRecordBytes(long rid, byte[] dst, int dstOffset) {
+        blkList.get(RecordBlock.ridBlockId(rid)).getRecordBytes(RecordBlock.ridSlot(rid), dst, dstOffset);
+    }
+
+    /**
+     * @return, whether the pool is kept in a data file, so it can be forced to disk by a checkpoint
+     */
+    boolean isFileBacked() {
+        return header != null;
+    }
+
+    /**
+     * @return, LSN of the last log record whose change is in the data file, 0 for an in memory pool
+     */
+    public long getCheckpointLsn() {
+        return header == null ? 0 : header.getLong(HEADER_CHECKPOINT_LSN);
+    }
+
+    /**
+     * forces every block to the data file, then records lsn as the checkpoint LSN in the header
+     * @param lsn, LSN of the last log record applied to the pool
+     * @return, false for an in memory pool, which has nothing to force
+     */
+    boolean checkpoint(long lsn) {
+        if (header == null) return false;
+        for (ByteBuffer chunk : arena) {
+            ((MappedByteBuffer) chunk).force();
+        }
+        // the LSN is written only once the blocks are on disk, so it never claims more than the file holds
+        header.putLong(HEADER_CHECKPOINT_LSN, lsn);
+        header.force();
+        return true;
+    }
+
+    /**
+     * puts a record back into the slot a log says it was written to, allocating blocks up to it if needed
+     * @param rid, record id from the log
+     * @param record, record bytes from the log
+     * @param offset, position of the Block.RECORD_SIZE bytes in record
+     */
+    void redoWrite(long rid, byte[] record, int offset) {
+        int blockId = RecordBlock.ridBlockId(rid);
+        while (blkList.size() <= blockId) {
+            if (!allocateBlock()) throw new IllegalStateException("No space to replay a write to block " + blockId);
+            // a block released by compaction may still have bits set on disk, they are what the file holds
+            blk.loadOccupancy();
+            totalNumRecords += blk.getNumRecords();
+        }
+        Block b = blkList.get(blockId);
+        int slot = RecordBlock.ridSlot(rid);
+        if (!b.isOccupied(slot)) totalNumRecords++;
+        b.putRecord(slot, record, offset);
+    }
+
+    /**
+     * clears the slot a log says was deleted, if it still holds a record
+     * @param rid, record id from the log
+     */
+    void redoDelete(long rid) {
+        int blockId = RecordBlock.ridBlockId(rid);
+        if (blockId >= blkList.size()) return;
+        Block b = blkList.get(blockId);
+        int slot = RecordBlock.ridSlot(rid);
+        if (!b.isOccupied(slot)) return;
+        b.deleteRecord(slot);
+        totalNumRecords--;
+    }
+
+    /**
+     * rebuilds the free list after a log was replayed, as redo writes bypass it
+     */
+    void finishRedo() {
+        for (Block b : freeBlocks) {
+            b.setOnFreeList(false);
+        }
+        freeBlocks.clear();
+        for (Block b : blkList) {
+            trackFreeSlots(b);
+        }
+        if (bufferPool != null) bufferPool.clear();
+    }
+
     /**
      * allocates a block for new record when previous block is full
      * @return boolean denoting whether allocation was successful
      */
     public boolean allocateBlock() {
-        if (numRemainingBlk < 0) {
+        if (numRemainingBlk <= 0) {
             System.out.println("MEMORY FULL");
             return false;
         }
-        if (blkList.size() == 0)
-            blkList.add(blk);
-        blk = new Block();
+        blk = mapBlock(numAllocatedBlk);
         blkList.add(blk);
         numAllocatedBlk++;
         numRemainingBlk--;
+        if (header != null) {
+            header.putInt(HEADER_NUM_BLOCKS, numAllocatedBlk);
+        }
         return true;
     }
 
     /**
-     *
+     * puts b on the free list if it has a free slot and is not on it already
+     * @param b, block that records may have been deleted from
+     */
+    private void trackFreeSlots(Block b) {
+        if (!b.isOnFreeList() && !b.isFull()) {
+            b.setOnFreeList(true);
+            freeBlocks.add(b);
+        }
+    }
+
+    /**
+     * @return, the first block on the free list with a free slot, else the current block, allocating a new one
+     * if it is full, or null if the pool is full
+     */
+    private Block blockForWrite() {
+        while (!freeBlocks.isEmpty()) {
+            Block b = freeBlocks.peek();
+            // blocks released by compaction are taken off the list here rather than searched for when released
+            if (b.isOnFreeList() && !b.isFull()) return b;
+            freeBlocks.poll();
+            b.setOnFreeList(false);
+        }
+        if (blk.isFull() && !allocateBlock()) return null;
+        return blk;
+    }
+
+    /**
+     * encodes rec into the current block
      * @param rec
+     * @return, location of the written record, or null if there is no space
+     */
+    public RecordBlock writeRecord(Record rec) {
+        return writeRecord(rec.getTconst(), rec.getAvgRating(), rec.getNumVotes());
+    }
+
+    /**
+     * encodes a record into a deleted slot if there is one, else into the current block, allocating a new block
+     * if it is full
+     * @param tconst, at most Block.TCONST_SIZE ascii characters
+     * @param avgRating
+     * @param numVotes
+     * @return, location of the written record, or null if it could not be stored
      */
-    public void writeRecord(Record rec) {
-        if (numRemainingBlk < 0) {
+    public RecordBlock writeRecord(String tconst, float avgRating, int numVotes) {
+        if (tconst.length() > Block.TCONST_SIZE) {
+            logger.warning("tconst too long: " + tconst);
+            return null;
+        }
+        Block b = blockForWrite();
+        if (b == null) {
             System.out.println("No more space available!");
-            return;
+            return null;
         }
 
-        blk.getRecords().add(rec);
-        recordCounter++;
+        int slot = b.appendRecord(tconst, avgRating, numVotes);
         totalNumRecords++;
+        if (bufferPool != null) bufferPool.invalidate(b.getId());
+        notifyWritten(RecordBlock.toRid(b.getId(), slot));
+        return new RecordBlock(b, slot);
+    }
 
-        if (recordCounter == recordsPerBlk) {
-            recordCounter = 0;
-            allocateBlock();
-        }
+    /**
+     * encodes a record like writeRecord(String, float, int) without creating any objects, for bulk ingest
+     * @param src, buffer holding tconst as ascii bytes
+     * @param tconstOffset, position of tconst in src
+     * @param tconstLen, length of tconst
+     * @param avgRating
+     * @param numVotes
+     * @return, record id of the written record, or -1 if tconst is longer than Block.TCONST_SIZE or there is no space
+     */
+    public long writeRecord(ByteBuffer src, int tconstOffset, int tconstLen, float avgRating, int numVotes) {
+        if (tconstLen > Block.TCONST_SIZE) return -1;
+        Block b = blockForWrite();
+        if (b == null) return -1;
+
+        int slot = b.appendRecord(src, tconstOffset, tconstLen, avgRating, numVotes);
+        totalNumRecords++;
+        if (bufferPool != null) bufferPool.invalidate(b.getId());
+        long rid = RecordBlock.toRid(b.getId(), slot);
+        notifyWritten(rid);
+        return rid;
     }
 
     public Block getBlock(){
         return this.blk;
     }
 
+    /**
+     * @return, every allocated block in pool order, read directly from the arena
+     */
+    ArrayList<Block> getBlockList() {
+        return blkList;
+    }
+
+    /**
+     * @param rid, record id from RecordBlock.getRid
+     * @return, location of the record
+     */
+    public RecordBlock getRecordBlock(long rid) {
+        return new RecordBlock(blkList.get(RecordBlock.ridBlockId(rid)), RecordBlock.ridSlot(rid));
+    }
+
     /**
      * to brute force the database and get records within a range
      * @param minKey, lowest key searching
      * @param maxKey, highest key searching
-     * @return, list of records that satisfy range
+     * @return, locations of records that satisfy range
+     */
+    public ArrayList<RecordBlock> searchBlocks(int minKey, int maxKey) {
+        ArrayList<RecordBlock> records = new ArrayList<>();
+        Iterator<RecordBlock> it = scanBlocks(minKey, maxKey);
+        while (it.hasNext()) {
+            records.add(it.next());
+        }
+        return records;
+    }
+
+    /**
+     * brute force scan that reads one block at a time as it is iterated, so callers can stop early
+     * blocks are counted in numBlocksAccessed as the iterator reaches them, or in numBlocksPruned if their zone map
+     * rules them out
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @return, iterator over locations of records that satisfy range, in block order
+     */
+    public Iterator<RecordBlock> scanBlocks(int minKey, int maxKey) {
+        return scanBlocks(minKey, maxKey, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * scanBlocks on both columns, e.g. to filter on avgRating, which is not indexed
+     * @param minVotes, lowest numVotes searching
+     * @param maxVotes, highest numVotes searching
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, iterator over locations of records that satisfy both ranges, in block order
+     */
+    public Iterator<RecordBlock> scanBlocks(int minVotes, int maxVotes, float minRating, float maxRating) {
+        numBlocksAccessed = 0;
+        numBlocksPruned = 0;
+        return new BlockScanIterator(minVotes, maxVotes, minRating, maxRating);
+    }
+
+    /**
+     * to brute force the database and get records within a range of avgRating
+     * @param minRating, lowest avgRating searching
+     * @param maxRating, highest avgRating searching
+     * @return, locations of records that satisfy range
+     */
+    public ArrayList<RecordBlock> searchBlocksByRating(float minRating, float maxRating) {
+        ArrayList<RecordBlock> records = new ArrayList<>();
+        Iterator<RecordBlock> it = scanBlocks(Integer.MIN_VALUE, Integer.MAX_VALUE, minRating, maxRating);
+        while (it.hasNext()) {
+            records.add(it.next());
+        }
+        return records;
+    }
+
+    /**
+     * to brute force the database for a record by tconst, zone maps cannot rule out any block for this
+     * @param tconst, tconst to find
+     * @return, location of the first record with this tconst, or null if there is none
      */
-    public ArrayList<Record> searchBlocks(int minKey, int maxKey) {
+    public RecordBlock searchTconst(String tconst) {
+        byte[] key = tconst.getBytes(StandardCharsets.US_ASCII);
         numBlocksAccessed = 0;
-        ArrayList<Record> records = new ArrayList<>();
+        numBlocksPruned = 0;
         for (Block b : blkList) {
+            if (b.getNumRecords() == 0) {
+                numBlocksPruned += 1;
+                continue;
+            }
             numBlocksAccessed += 1;
-            for (Record r : b.getRecords()) {
-                int numVotes = r.getNumVotes();
-                if (numVotes >= minKey && numVotes <= maxKey) {
-                    records.add(r);
+            Block view = pinBlock(b);
+            try {
+                for (int slot = 0; slot < b.getNumSlotsUsed(); slot++) {
+                    if (view.isOccupied(slot) && view.tconstEquals(slot, key, key.length)) return new RecordBlock(b, slot);
                 }
+            } finally {
+                unpinBlock(b);
             }
         }
-        return records;
+        return null;
+    }
+
+    /**
+     * holds the matching slots of the current block, the block is unpinned before its records are returned
+     */
+    private class BlockScanIterator implements Iterator<RecordBlock> {
+        private int minVotes;
+        private int maxVotes;
+        private float minRating;
+        private float maxRating;
+        private int blkIdx;
+        private Block curBlk;
+        private int[] slots;
+        private int numSlots;
+        private int slotIdx;
+
+        BlockScanIterator(int minVotes, int maxVotes, float minRating, float maxRating) {
+            this.minVotes = minVotes;
+            this.maxVotes = maxVotes;
+            this.minRating = minRating;
+            this.maxRating = maxRating;
+            this.blkIdx = 0;
+            this.slots = new int[recordsPerBlk];
+            advanceBlock();
+        }
+
+        private void advanceBlock() {
+            numSlots = 0;
+            slotIdx = 0;
+            while (numSlots == 0 && blkIdx < blkList.size()) {
+                curBlk = blkList.get(blkIdx++);
+                if (!curBlk.mayContain(minVotes, maxVotes, minRating, maxRating)) {
+                    numBlocksPruned += 1;
+                    continue;
+                }
+                numBlocksAccessed += 1;
+                Block view = pinBlock(curBlk);
+                for (int slot = 0; slot < curBlk.getNumSlotsUsed(); slot++) {
+                    if (!view.isOccupied(slot)) continue;
+                    int numVotes = view.getNumVotes(slot);
+                    if (numVotes < minVotes || numVotes > maxVotes) continue;
+                    float avgRating = view.getAvgRating(slot);
+                    if (avgRating >= minRating && avgRating <= maxRating) {
+                        slots[numSlots++] = slot;
+                    }
+                }
+                unpinBlock(curBlk);
+            }
+        }
+
+        public boolean hasNext() {
+            return slotIdx < numSlots;
+        }
+
+        public RecordBlock next() {
+            if (slotIdx >= numSlots) throw new NoSuchElementException();
+            RecordBlock rb = new RecordBlock(curBlk, slots[slotIdx++]);
+            if (slotIdx == numSlots) advanceBlock();
+            return rb;
+        }
     }
 
     /**
@@ -125,24 +650,347 @@ public class MemoryPool {
      * @param records, the records within a range of keys
      * @return, the average of average ratings
      */
-    public float getAvgOfAvgRatings(ArrayList<Record> records) {
-        if (records.size() == 0) return 0;
+    public float getAvgOfAvgRatings(ArrayList<RecordBlock> records) {
+        return getAvgOfAvgRatings(records.iterator());
+    }
+
+    /**
+     * to find average of average ratings in one pass, e.g. over scanBlocks without building a list
+     * @param records, the records within a range of keys
+     * @return, the average of average ratings
+     */
+    public float getAvgOfAvgRatings(Iterator<RecordBlock> records) {
         float total = 0;
-        for (Record r : records) {
-            total += r.getAvgRating();
+        int count = 0;
+        // records of the same block usually come in a row, so the block stays pinned until another one is needed
+        Block pinned = null;
+        Block view = null;
+        while (records.hasNext()) {
+            RecordBlock r = records.next();
+            if (r.getBlock() != pinned) {
+                if (pinned != null) unpinBlock(pinned);
+                pinned = r.getBlock();
+                view = pinBlock(pinned);
+            }
+            total += view.getAvgRating(r.getSlot());
+            count++;
+        }
+        if (pinned != null) unpinBlock(pinned);
+        if (count == 0) return 0;
+        return (total / count);
+    }
+
+    /**
+     * @param b, block to read
+     * @return, b itself, or a view of its frame when reads go through the buffer pool
+     */
+    private Block pinBlock(Block b) {
+        if (bufferPool == null) return b;
+        int frame = bufferPool.pinFrame(b.getId());
+        Block view = frameViews[frame];
+        if (view == null) {
+            view = new Block(b.getId(), bufferPool.getFrame(frame), 0, recordsPerBlk);
+            frameViews[frame] = view;
+        } else {
+            view.setId(b.getId());
         }
-        return (total / records.size());
+        return view;
+    }
+
+    private void unpinBlock(Block b) {
+        if (bufferPool != null) bufferPool.unpin(b.getId(), false);
     }
 
     public void deleteKey(int key) {
         numBlocksAccessed = 0;
+        numBlocksPruned = 0;
         for (int i = blkList.size() - 1; i > -1; i--) {
+            Block b = blkList.get(i);
+            if (!b.mayContain(key, key, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY)) {
+                numBlocksPruned += 1;
+                continue;
+            }
+            numBlocksAccessed += 1;
+            // the zone map is rebuilt once per block, not once per deleted record
+            boolean stale = false;
+            for (int slot = b.getNumSlotsUsed() - 1; slot > -1; slot--) {
+                if (b.isOccupied(slot) && b.getNumVotes(slot) == key) {
+                    notifyDeleted(RecordBlock.toRid(b.getId(), slot));
+                    stale |= b.deleteRecordKeepZoneMap(slot);
+                    totalNumRecords--;
+                    if (bufferPool != null) bufferPool.invalidate(b.getId());
+                }
+            }
+            if (stale) b.rebuildZoneMap();
+            trackFreeSlots(b);
+        }
+    }
+
+    /**
+     * deletes one record by its location, for deletes driven by an index
+     * @param rid, record id from RecordBlock.getRid
+     * @return, whether there was a record at rid
+     */
+    public boolean deleteRecord(long rid) {
+        Block b = blkList.get(RecordBlock.ridBlockId(rid));
+        int slot = RecordBlock.ridSlot(rid);
+        if (!b.isOccupied(slot)) return false;
+        notifyDeleted(rid);
+        b.deleteRecord(slot);
+        totalNumRecords--;
+        if (bufferPool != null) bufferPool.invalidate(b.getId());
+        trackFreeSlots(b);
+        return true;
+    }
+
+    /**
+     * deletes many records by location, rids are sorted first so every block is visited once and in order
+     * @param rids, record ids from RecordBlock.getRid, reordered by this call
+     * @param count, number of record ids in rids to delete
+     * @return, number of records deleted
+     */
+    public int deleteRecords(long[] rids, int count) {
+        numBlocksAccessed = 0;
+        numBlocksPruned = 0;
+        Arrays.sort(rids, 0, count);
+        int numDeleted = 0;
+        int i = 0;
+        while (i < count) {
+            int blockId = RecordBlock.ridBlockId(rids[i]);
+            Block b = blkList.get(blockId);
             numBlocksAccessed += 1;
-            for (int j = blkList.get(i).getRecords().size() - 1; j > -1; j--) {
-                if (blkList.get(i).getRecords().get(j).getNumVotes() == key) {
-                    blkList.get(i).getRecords().remove(j);
+            boolean stale = false;
+            for (; i < count && RecordBlock.ridBlockId(rids[i]) == blockId; i++) {
+                int slot = RecordBlock.ridSlot(rids[i]);
+                if (!b.isOccupied(slot)) continue;
+                notifyDeleted(rids[i]);
+                stale |= b.deleteRecordKeepZoneMap(slot);
+                totalNumRecords--;
+                numDeleted++;
+            }
+            if (stale) b.rebuildZoneMap();
+            if (bufferPool != null) bufferPool.invalidate(blockId);
+            trackFreeSlots(b);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * parallel brute force scan, blkList is split into ranges that are scanned on the common ForkJoinPool
+     * blocks are read straight from the arena, as the buffer pool is not thread safe
+     * @param minKey, lowest key searching
+     * @param maxKey, highest key searching
+     * @param collectRecords, whether to return the matching records or only count and sum them
+     * @return, matching records in block order, with this scan's own block counts
+     */
+    public ScanResult parallelSearchBlocks(int minKey, int maxKey, boolean collectRecords) {
+        ScanResult result = ForkJoinPool.commonPool().invoke(
+                new ScanTask(0, blkList.size(), minKey, maxKey, collectRecords, false));
+        numBlocksAccessed = result.getNumBlocksAccessed();
+        numBlocksPruned = result.getNumBlocksPruned();
+        return result;
+    }
+
+    /**
+     * parallel deleteKey, each task clears the matching slots of its own blocks
+     * @param key, numVotes of the records to delete
+     * @return, number of records deleted, with this scan's own block counts
+     */
+    public ScanResult parallelDeleteKey(int key) {
+        // deleted records are collected for the secondary indexes and the log, their bytes stay readable after the delete
+        ScanResult result = ForkJoinPool.commonPool().invoke(
+                new ScanTask(0, blkList.size(), key, key, !secondaryIndexes.isEmpty() || wal != null, true));
+        if (result.getRecords() != null) {
+            for (RecordBlock rb : result.getRecords()) {
+                notifyDeleted(rb.getRid());
+            }
+        }
+        totalNumRecords -= result.getNumRecords();
+        numBlocksAccessed = result.getNumBlocksAccessed();
+        numBlocksPruned = result.getNumBlocksPruned();
+        if (result.getNumRecords() > 0) {
+            for (Block b : blkList) {
+                trackFreeSlots(b);
+            }
+            if (bufferPool != null) bufferPool.clear();
+        }
+        return result;
+    }
+
+    /**
+     * @return, fraction of slots in allocated blocks that hold no record
+     */
+    public float getFragmentation() {
+        long numSlots = (long) blkList.size() * recordsPerBlk;
+        return numSlots == 0 ? 0 : 1 - (float) totalNumRecords / numSlots;
+    }
+
+    /**
+     * packs records into fewer blocks, moving records from the last blocks into free slots of the first ones
+     * blocks left empty at the end of the pool are released and reused by later writes
+     * at most maxMoves records are moved, so compaction can run a step at a time between queries, each step keeps
+     * the free list up to date as it moves records and only drops the cached pages of blocks it changed or released
+     * @param maxMoves, most records to move
+     * @param listener, told about every moved record so indexes can update their pointers, a step at a time
+     * @return, number of records moved
+     */
+    public int compact(int maxMoves, RelocationListener listener) {
+        long[] oldRids = new long[Math.max(1, Math.min(maxMoves, COMPACT_BATCH_SIZE))];
+        long[] newRids = new long[oldRids.length];
+        int[] keys = new int[oldRids.length];
+        int numMoved = 0;
+        // source block whose zone map is rebuilt once the moves leave it, moves come out of one block at a time
+        Block stale = null;
+        while (numMoved < maxMoves) {
+            int n = planMoves(oldRids, newRids, Math.min(maxMoves - numMoved, oldRids.length));
+            if (n == 0) break;
+            // a move clears a slot that may already be on disk, so it is made durable before any block changes,
+            // else a crash could keep the cleared source page but not the destination page
+            if (wal != null) {
+                for (int i = 0; i < n; i++) {
+                    wal.logMove(oldRids[i], newRids[i]);
+                }
+                try {
+                    wal.sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                Block from = blkList.get(RecordBlock.ridBlockId(oldRids[i]));
+                Block to = blkList.get(RecordBlock.ridBlockId(newRids[i]));
+                int srcSlot = RecordBlock.ridSlot(oldRids[i]);
+                int slot = RecordBlock.ridSlot(newRids[i]);
+                to.copyRecord(from, srcSlot, slot);
+                if (stale != null && stale != from) {
+                    stale.rebuildZoneMap();
+                    stale = null;
+                }
+                if (from.deleteRecordKeepZoneMap(srcSlot)) stale = from;
+                // destination blocks that fill up are dropped from the free list by the next write
+                trackFreeSlots(from);
+                if (bufferPool != null) {
+                    bufferPool.invalidate(from.getId());
+                    bufferPool.invalidate(to.getId());
+                }
+                keys[i] = to.getNumVotes(slot);
+            }
+            // indexes hear about the whole step at once, so they can update a key with many moved records in one pass
+            listener.relocatedAll(keys, oldRids, newRids, n);
+            for (SecondaryIndex index : secondaryIndexes) {
+                index.relocatedAll(keys, oldRids, newRids, n);
+            }
+            numMoved += n;
+        }
+        if (stale != null) stale.rebuildZoneMap();
+
+        // release empty blocks at the end, their bitmaps are all clear so they can be handed out again as is
+        while (blkList.size() > 1 && blkList.get(blkList.size() - 1).getNumRecords() == 0) {
+            Block released = blkList.remove(blkList.size() - 1);
+            released.setOnFreeList(false);
+            if (bufferPool != null) bufferPool.invalidate(released.getId());
+            numAllocatedBlk--;
+            numRemainingBlk++;
+        }
+        blk = blkList.get(blkList.size() - 1);
+        if (header != null) {
+            header.putInt(HEADER_NUM_BLOCKS, numAllocatedBlk);
+        }
+        return numMoved;
+    }
+
+    /**
+     * picks the next moves of compaction without changing any block, records from the end of the last blocks go to
+     * the first free slots of the first blocks, in the order copying them one at a time would use
+     * @param oldRids, filled with the slots to move records out of
+     * @param newRids, filled with the slots to move them to
+     * @param maxMoves, most moves to pick
+     * @return, number of moves picked
+     */
+    private int planMoves(long[] oldRids, long[] newRids, int maxMoves) {
+        int n = 0;
+        int dst = 0;
+        int dstSlot = 0;
+        int src = blkList.size() - 1;
+        int srcSlot = blkList.get(src).getNumSlotsUsed() - 1;
+        while (n < maxMoves) {
+            while (dst < src) {
+                Block to = blkList.get(dst);
+                if (!to.isFull()) {
+                    while (dstSlot < recordsPerBlk && to.isOccupied(dstSlot)) {
+                        dstSlot++;
+                    }
+                    if (dstSlot < recordsPerBlk) break;
+                }
+                dst++;
+                dstSlot = 0;
+            }
+            while (src > dst && srcSlot < 0) {
+                src--;
+                srcSlot = blkList.get(src).getNumSlotsUsed() - 1;
+            }
+            if (dst >= src) break;
+            if (blkList.get(src).isOccupied(srcSlot)) {
+                oldRids[n] = RecordBlock.toRid(blkList.get(src).getId(), srcSlot);
+                newRids[n] = RecordBlock.toRid(blkList.get(dst).getId(), dstSlot);
+                n++;
+                dstSlot++;
+            }
+            srcSlot--;
+        }
+        return n;
+    }
+
+    /**
+     * scans blkList[from..to), splitting in halves until the range is small enough
+     */
+    private class ScanTask extends RecursiveTask<ScanResult> {
+        private static final long serialVersionUID = 1L;
+
+        private int from;
+        private int to;
+        private int minKey;
+        private int maxKey;
+        private boolean collectRecords;
+        private boolean delete;
+
+        ScanTask(int from, int to, int minKey, int maxKey, boolean collectRecords, boolean delete) {
+            this.from = from;
+            this.to = to;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+            this.collectRecords = collectRecords;
+            this.delete = delete;
+        }
+
+        protected ScanResult compute() {
+            if (to - from > SCAN_TASK_BLOCKS) {
+                int mid = (from + to) >>> 1;
+                ScanTask right = new ScanTask(mid, to, minKey, maxKey, collectRecords, delete);
+                right.fork();
+                ScanResult result = new ScanTask(from, mid, minKey, maxKey, collectRecords, delete).compute();
+                result.merge(right.join());
+                return result;
+            }
+            ScanResult result = new ScanResult(collectRecords);
+            for (int i = from; i < to; i++) {
+                Block b = blkList.get(i);
+                if (!b.mayContain(minKey, maxKey, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY)) {
+                    result.addBlockPruned();
+                    continue;
+                }
+                result.addBlockAccessed();
+                boolean stale = false;
+                for (int slot = 0; slot < b.getNumSlotsUsed(); slot++) {
+                    if (!b.isOccupied(slot)) continue;
+                    int numVotes = b.getNumVotes(slot);
+                    if (numVotes < minKey || numVotes > maxKey) continue;
+                    result.addRecord(b, slot, b.getAvgRating(slot));
+                    if (delete) stale |= b.deleteRecordKeepZoneMap(slot);
                 }
+                if (stale) b.rebuildZoneMap();
             }
+            return result;
         }
     }
 
@@ -154,5 +1002,7 @@ public class MemoryPool {
         logger.info("Size of a record: " + recordSize);
         logger.info("Number of records per block: " + recordsPerBlk);
         logger.info("Number of blocks: " + numAllocatedBlk);
+        logger.info("Size of allocated blocks: " + ((long) numAllocatedBlk * blkSize) + " bytes");
+        logger.info("Size of arena: " + ((long) arena.size() * blocksPerChunk * blkSize) + " bytes");
     }
 }
@@ -0,0 +1,108 @@
+package memorypool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * a file of fixed-size pages addressed by page number
+ */
+public class PageFile implements PageStore {
+    private FileChannel channel;
+    private int pageSize;
+    // Number of pages in the file, including allocated pages that have not been written yet
+    private int numPages;
+
+    /**
+     * opens the page file at path, creating it if it does not exist
+     * @param path
+     * @param pageSize
+     * @throws IOException
+     */
+    public PageFile(String path, int pageSize) throws IOException {
+        this.channel = FileChannel.open(Path.of(path),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        this.pageSize = pageSize;
+        this.numPages = (int) (channel.size() / pageSize);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * reserves a new page at the end of the file
+     * @return, page number of the new page
+     */
+    public int allocatePage() {
+        return numPages++;
+    }
+
+    /**
+     * reads a page into dst, pages past the end of the file read as zeroes
+     * @param pageId, page to read
+     * @param dst, buffer of at least pageSize bytes, its position and limit are reset
+     */
+    public void readPage(int pageId, ByteBuffer dst) {
+        dst.clear().limit(pageSize);
+        long pos = (long) pageId * pageSize;
+        try {
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, pos + dst.position());
+                if (n < 0) {
+                    while (dst.hasRemaining()) dst.put((byte) 0);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dst.clear();
+    }
+
+    /**
+     * writes the first pageSize bytes of src to a page
+     * @param pageId, page to write
+     * @param src, page contents, its position and limit are reset
+     */
+    public void writePage(int pageId, ByteBuffer src) {
+        src.clear().limit(pageSize);
+        long pos = (long) pageId * pageSize;
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src, pos + src.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        src.clear();
+    }
+
+    /**
+     * drops every page from numPages onwards
+     * @param numPages, number of pages to keep
+     */
+    public void truncate(int numPages) {
+        try {
+            channel.truncate((long) numPages * pageSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.numPages = numPages;
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+}
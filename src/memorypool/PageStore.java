@@ -0,0 +1,24 @@
+package memorypool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * storage of fixed-size pages that a BufferPool caches
+ */
+public interface PageStore {
+    int getPageSize();
+
+    /**
+     * reads a page into dst
+     * @param pageId, page to read
+     * @param dst, buffer of at least getPageSize bytes
+     */
+    void readPage(int pageId, ByteBuffer dst);
+
+    /**
+     * writes the first getPageSize bytes of src to a page
+     * @param pageId, page to write
+     * @param src, page contents
+     */
+    void writePage(int pageId, ByteBuffer src);
+}
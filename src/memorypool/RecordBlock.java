@@ -1,19 +1,65 @@
 package memorypool;
 
+/**
+ * location of a record, the block it is in and its slot in that block
+ * fields are read in place from the block instead of from a Record object
+ */
 public class RecordBlock {
-    private Record record;
     private Block block;
+    private int slot;
 
-    public RecordBlock(Record record, Block block) {
-        this.record = record;
+    public RecordBlock(Block block, int slot) {
         this.block = block;
+        this.slot = slot;
     }
 
-    public Record getRecord() {
-        return record;
+    /**
+     * packs a block number and slot into a record id, used where a record is referenced by value instead of by object
+     * @param blockId, block number in the memory pool
+     * @param slot, slot in the block
+     * @return, record id
+     */
+    public static long toRid(int blockId, int slot) {
+        return ((long) blockId << 32) | slot;
+    }
+
+    public static int ridBlockId(long rid) {
+        return (int) (rid >>> 32);
+    }
+
+    public static int ridSlot(long rid) {
+        return (int) rid;
+    }
+
+    public long getRid() {
+        return toRid(block.getId(), slot);
     }
 
     public Block getBlock() {
         return block;
     }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public float getAvgRating() {
+        return block.getAvgRating(slot);
+    }
+
+    public int getNumVotes() {
+        return block.getNumVotes(slot);
+    }
+
+    public String getTconst() {
+        return block.getTconst(slot);
+    }
+
+    /**
+     * copies the record out of its block
+     * @return, a new Record with the same fields
+     */
+    public Record getRecord() {
+        return new Record(getTconst(), getAvgRating(), getNumVotes());
+    }
 }
@@ -0,0 +1,27 @@
+package memorypool;
+
+/**
+ * receives the records moved by MemoryPool.compact, so an index can point its entry at the new location
+ */
+public interface RelocationListener {
+    /**
+     * @param numVotes, key of the moved record
+     * @param oldRid, record id before the move
+     * @param newRid, record id after the move
+     */
+    void relocated(int numVotes, long oldRid, long newRid);
+
+    /**
+     * receives the moves of one compaction step at once, so an index can update each key once for all of its moved
+     * records, by default relocated is called for every move
+     * @param numVotes, keys of the moved records
+     * @param oldRids, record ids before the moves
+     * @param newRids, record ids after the moves
+     * @param count, number of moves in the arrays
+     */
+    default void relocatedAll(int[] numVotes, long[] oldRids, long[] newRids, int count) {
+        for (int i = 0; i < count; i++) {
+            relocated(numVotes[i], oldRids[i], newRids[i]);
+        }
+    }
+}
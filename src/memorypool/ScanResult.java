@@ -0,0 +1,88 @@
+package memorypool;
+
+import java.util.ArrayList;
+
+/**
+ * result of one scan over the memory pool, counts belong to this scan only so concurrent scans do not mix them up
+ */
+public class ScanResult {
+    // matching records in block order, null if the scan only aggregates
+    private ArrayList<RecordBlock> records;
+    private int numRecords;
+    private double ratingSum;
+    private int numBlocksAccessed;
+    private int numBlocksPruned;
+
+    public ScanResult(boolean collectRecords) {
+        this.records = collectRecords ? new ArrayList<>() : null;
+        this.numRecords = 0;
+        this.ratingSum = 0;
+        this.numBlocksAccessed = 0;
+        this.numBlocksPruned = 0;
+    }
+
+    void addRecord(Block block, int slot, float avgRating) {
+        if (records != null) records.add(new RecordBlock(block, slot));
+        numRecords++;
+        ratingSum += avgRating;
+    }
+
+    void addRecord(RecordBlock rb, float avgRating) {
+        if (records != null) records.add(rb);
+        numRecords++;
+        ratingSum += avgRating;
+    }
+
+    void addAggregate(int count, double sum) {
+        numRecords += count;
+        ratingSum += sum;
+    }
+
+    void addBlockAccessed() {
+        numBlocksAccessed++;
+    }
+
+    void addBlockPruned() {
+        numBlocksPruned++;
+    }
+
+    /**
+     * adds the result of a scan over the blocks right after this one
+     * @param other, result to merge in
+     */
+    void merge(ScanResult other) {
+        if (records != null) records.addAll(other.records);
+        numRecords += other.numRecords;
+        ratingSum += other.ratingSum;
+        numBlocksAccessed += other.numBlocksAccessed;
+        numBlocksPruned += other.numBlocksPruned;
+    }
+
+    public ArrayList<RecordBlock> getRecords() {
+        return records;
+    }
+
+    public int getNumRecords() {
+        return numRecords;
+    }
+
+    public double getRatingSum() {
+        return ratingSum;
+    }
+
+    /**
+     * @return, average of average ratings, 0 if no records matched
+     */
+    public float getAvgRating() {
+        if (numRecords == 0) return 0;
+        return (float) (ratingSum / numRecords);
+    }
+
+    public int getNumBlocksAccessed() {
+        return numBlocksAccessed;
+    }
+
+    public int getNumBlocksPruned() {
+        return numBlocksPruned;
+    }
+}
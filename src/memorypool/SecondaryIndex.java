@@ -0,0 +1,18 @@
+package memorypool;
+
+/**
+ * an index over the records of a memory pool, the pool keeps it up to date as records are written, deleted and
+ * moved by compaction
+ */
+public interface SecondaryIndex extends RelocationListener {
+    /**
+     * @param rid, record id of a record that was just written
+     */
+    void recordWritten(long rid);
+
+    /**
+     * deleted records keep their bytes until the slot is reused, so the fields of rid can still be read
+     * @param rid, record id of the deleted record
+     */
+    void recordDeleted(long rid);
+}
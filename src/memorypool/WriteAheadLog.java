@@ -0,0 +1,405 @@
+package memorypool;
+
+import main.Main;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * append only log of the changes made to a memory pool, so its data file can be brought back after a crash instead
+ * of being reloaded from the TSV
+ * every write, delete and compaction move is logged as a redo record naming the slot it changed and what the slot
+ * holds afterwards, so replaying a record twice, or onto a block that already has the change, changes nothing
+ * records are buffered and written by a flusher thread, which forces the file once per groupCommitSize records or
+ * groupCommitMillis after the first buffered record, whichever comes first, so the pool never waits for the disk
+ * and callers that need a change to be durable call sync, or awaitDurable with an LSN from getLastLsn
+ * a checkpoint forces the data file, stores the last LSN in its header and empties the log, it runs by itself once
+ * the log reaches checkpointBytes, and on open the records after the checkpoint LSN are replayed onto the pool
+ * record layout: type (1 byte), LSN (8), rid (8), new rid of a move (8), record bytes of a write or move
+ * (Block.RECORD_SIZE), CRC32 of the bytes before it (4), a record that is cut short or fails its CRC ends the log
+ * blocks are memory mapped and may reach the disk before their log record, so a write or delete that was not yet
+ * durable at a crash may or may not survive it, either way every slot holds a state it really had
+ * a compaction move clears a slot whose record may already be on disk, so the pool logs and syncs its moves before
+ * making them, and a record is never lost to a move whose destination had not reached the disk
+ */
+public class WriteAheadLog {
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 1024;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 10;
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+    private static final byte WRITE = 1;
+    private static final byte DELETE = 2;
+    private static final byte MOVE = 3;
+    private static final int WRITE_SIZE = 1 + 8 + 8 + Block.RECORD_SIZE + 4;
+    private static final int DELETE_SIZE = 1 + 8 + 8 + 4;
+    private static final int MOVE_SIZE = 1 + 8 + 8 + 8 + Block.RECORD_SIZE + 4;
+    // appends wait for the flusher once this many bytes are buffered
+    private static final int MAX_PENDING_BYTES = 16 << 20;
+
+    static Logger logger = Logger.getLogger(Main.class.getName());
+
+    private MemoryPool db;
+    private FileChannel channel;
+    private int groupCommitSize;
+    private long groupCommitMillis;
+    private long checkpointBytes;
+    private Thread flusher;
+
+    // guards the fields below, the flusher waits on it for records and callers wait on it for durability
+    private final Object lock = new Object();
+    private ByteBuffer pending;
+    private int numPending;
+    private long firstPendingNanos;
+    private long lastLsn;
+    private long durableLsn;
+    private boolean syncRequested;
+    private boolean closed;
+    private IOException flushError;
+    // bytes in the log file and buffer, compared against checkpointBytes
+    private long logBytes;
+
+    // guards writes to the file against truncation by a checkpoint
+    private final Object ioLock = new Object();
+    private long writePos;
+
+    // scratch space for the record bytes of a write or move, only used by the thread changing the pool
+    private byte[] recordBuf = new byte[Block.RECORD_SIZE];
+    private CRC32 crc = new CRC32();
+
+    private WriteAheadLog(MemoryPool db, FileChannel channel, int groupCommitSize, long groupCommitMillis,
+                          long checkpointBytes) {
+        this.db = db;
+        this.channel = channel;
+        this.groupCommitSize = Math.max(1, groupCommitSize);
+        this.groupCommitMillis = groupCommitMillis;
+        // an in memory pool cannot be checkpointed, so its log is never truncated and checking its size would only
+        // force a sync on every append once it passed checkpointBytes
+        this.checkpointBytes = db.isFileBacked() ? checkpointBytes : Long.MAX_VALUE;
+        this.pending = ByteBuffer.allocate(1 << 16);
+    }
+
+    /**
+     * opens a log, replays the records after the pool's checkpoint onto it, and logs every later change to the pool
+     * it must be opened before secondary indexes are added, as replayed changes are not passed on to them
+     * @param path, log file, created if it does not exist
+     * @param db, memory pool the log belongs to
+     * @param groupCommitSize, most records per forced write
+     * @param groupCommitMillis, longest a record waits to be forced
+     * @param checkpointBytes, log size at which a checkpoint is taken, ignored for an in memory pool
+     * @return, the opened log
+     * @throws IOException if the log cannot be read
+     */
+    public static WriteAheadLog open(String path, MemoryPool db, int groupCommitSize, long groupCommitMillis,
+                                     long checkpointBytes) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(path),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        WriteAheadLog wal = new WriteAheadLog(db, channel, groupCommitSize, groupCommitMillis, checkpointBytes);
+        wal.recover();
+        db.setWriteAheadLog(wal);
+        wal.flusher = new Thread(wal::runFlusher, "wal-flusher");
+        wal.flusher.setDaemon(true);
+        wal.flusher.start();
+        return wal;
+    }
+
+    public static WriteAheadLog open(String path, MemoryPool db) throws IOException {
+        return open(path, db, DEFAULT_GROUP_COMMIT_SIZE, DEFAULT_GROUP_COMMIT_MILLIS, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * @return, LSN of the last logged change
+     */
+    public long getLastLsn() {
+        synchronized (lock) {
+            return lastLsn;
+        }
+    }
+
+    /**
+     * @return, LSN up to which every change is on disk
+     */
+    public long getDurableLsn() {
+        synchronized (lock) {
+            return durableLsn;
+        }
+    }
+
+    /**
+     * replays the records after the checkpoint LSN and cuts off a torn record at the end of the log
+     */
+    private void recover() throws IOException {
+        long checkpointLsn = db.getCheckpointLsn();
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Log is too large to replay: " + size + " bytes");
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) break;
+        }
+        buf.flip();
+
+        int pos = 0;
+        int numReplayed = 0;
+        long maxLsn = checkpointLsn;
+        while (pos < buf.limit()) {
+            int len = recordSize(buf.get(pos));
+            if (len < 0 || pos + len > buf.limit()) break;
+            crc.reset();
+            crc.update(buf.array(), pos, len - 4);
+            if ((int) crc.getValue() != buf.getInt(pos + len - 4)) break;
+
+            byte type = buf.get(pos);
+            long lsn = buf.getLong(pos + 1);
+            long rid = buf.getLong(pos + 9);
+            if (lsn > checkpointLsn) {
+                if (type == WRITE) {
+                    db.redoWrite(rid, buf.array(), pos + 17);
+                } else if (type == DELETE) {
+                    db.redoDelete(rid);
+                } else {
+                    db.redoWrite(buf.getLong(pos + 17), buf.array(), pos + 25);
+                    db.redoDelete(rid);
+                }
+                numReplayed++;
+            }
+            maxLsn = Math.max(maxLsn, lsn);
+            pos += len;
+        }
+        if (pos < size) {
+            logger.warning("Discarding " + (size - pos) + " bytes of incomplete log after LSN " + maxLsn);
+            channel.truncate(pos);
+        }
+        if (numReplayed > 0) {
+            db.finishRedo();
+            logger.info("Replayed " + numReplayed + " log records after checkpoint LSN " + checkpointLsn);
+        }
+        lastLsn = maxLsn;
+        durableLsn = maxLsn;
+        writePos = pos;
+        logBytes = pos;
+    }
+
+    private static int recordSize(byte type) {
+        switch (type) {
+            case WRITE:
+                return WRITE_SIZE;
+            case DELETE:
+                return DELETE_SIZE;
+            case MOVE:
+                return MOVE_SIZE;
+            default:
+                return -1;
+        }
+    }
+
+    void logWrite(long rid) {
+        db.getRecordBytes(rid, recordBuf, 0);
+        append(WRITE, rid, 0);
+    }
+
+    void logDelete(long rid) {
+        append(DELETE, rid, 0);
+    }
+
+    /**
+     * logged before the move is made, so the record is still in oldRid
+     * @param oldRid, slot the record is moved out of
+     * @param newRid, slot the record is moved to
+     */
+    void logMove(long oldRid, long newRid) {
+        db.getRecordBytes(oldRid, recordBuf, 0);
+        append(MOVE, oldRid, newRid);
+    }
+
+    /**
+     * buffers one record for the flusher
+     * the pool logs a write or delete once it has made it, and a move just before it makes it, so every earlier
+     * change is already in its blocks here, which is what lets a checkpoint due to log size run before the record is
+     * added, except before a move, as the moves logged ahead of it are not made yet
+     */
+    private void append(byte type, long rid, long newRid) {
+        if (type != MOVE && logBytes >= checkpointBytes) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        int size = recordSize(type);
+        synchronized (lock) {
+            while (pending.position() >= MAX_PENDING_BYTES && flushError == null) {
+                awaitLocked();
+            }
+            if (flushError != null) throw new UncheckedIOException(flushError);
+            if (pending.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            int start = pending.position();
+            pending.put(type).putLong(++lastLsn).putLong(rid);
+            if (type == MOVE) pending.putLong(newRid);
+            if (type != DELETE) pending.put(recordBuf, 0, Block.RECORD_SIZE);
+            crc.reset();
+            crc.update(pending.array(), start, size - 4);
+            pending.putInt((int) crc.getValue());
+            logBytes += size;
+            if (numPending++ == 0) firstPendingNanos = System.nanoTime();
+            // the flusher sleeps until the first record of a group arrives, and is woken early by a full group
+            if (numPending == 1 || numPending >= groupCommitSize) lock.notifyAll();
+        }
+    }
+
+    private void awaitLocked() {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for the log"));
+        }
+    }
+
+    /**
+     * takes the buffered records a group at a time, writes them and forces the file
+     */
+    private void runFlusher() {
+        ByteBuffer spare = ByteBuffer.allocate(pending.capacity());
+        while (true) {
+            ByteBuffer batch;
+            long batchLsn;
+            synchronized (lock) {
+                try {
+                    while (!closed && !syncRequested && numPending < groupCommitSize) {
+                        if (numPending == 0) {
+                            lock.wait();
+                            continue;
+                        }
+                        long waitMillis = groupCommitMillis - (System.nanoTime() - firstPendingNanos) / 1000000;
+                        if (waitMillis <= 0) break;
+                        lock.wait(waitMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (numPending == 0) {
+                    syncRequested = false;
+                    if (closed) return;
+                    continue;
+                }
+                batch = pending;
+                pending = spare;
+                batchLsn = lastLsn;
+                numPending = 0;
+                syncRequested = false;
+                // appends waiting for buffer space can go on
+                lock.notifyAll();
+            }
+
+            try {
+                batch.flip();
+                synchronized (ioLock) {
+                    while (batch.hasRemaining()) {
+                        writePos += channel.write(batch, writePos);
+                    }
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    flushError = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            batch.clear();
+            spare = batch;
+            synchronized (lock) {
+                durableLsn = batchLsn;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * waits until every change up to lsn is on disk
+     * @param lsn, LSN from getLastLsn
+     * @throws IOException if the log could not be written
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        synchronized (lock) {
+            while (durableLsn < lsn) {
+                if (flushError != null) throw flushError;
+                if (closed) throw new IOException("Log is closed");
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the log");
+                }
+            }
+        }
+    }
+
+    /**
+     * forces every logged change to disk without waiting for the rest of its group
+     * @return, LSN of the last change, which is now durable
+     * @throws IOException if the log could not be written
+     */
+    public long sync() throws IOException {
+        long lsn;
+        synchronized (lock) {
+            lsn = lastLsn;
+            if (durableLsn < lsn) {
+                syncRequested = true;
+                lock.notifyAll();
+            }
+        }
+        awaitDurable(lsn);
+        return lsn;
+    }
+
+    /**
+     * forces the data file and empties the log, so a restart replays nothing logged before now
+     * must be called from the thread changing the pool, between changes
+     * @throws IOException if the log or data file could not be written
+     */
+    public void checkpoint() throws IOException {
+        long lsn = sync();
+        // an in memory pool cannot be forced, its log is all there is
+        if (!db.checkpoint(lsn)) return;
+        synchronized (ioLock) {
+            channel.truncate(0);
+            channel.force(true);
+            writePos = 0;
+        }
+        synchronized (lock) {
+            logBytes = 0;
+        }
+        logger.info("Checkpoint at LSN " + lsn);
+    }
+
+    /**
+     * forces the remaining records, stops the flusher and closes the file, the pool stops logging
+     * @throws IOException if the log could not be written
+     */
+    public void close() throws IOException {
+        sync();
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        db.setWriteAheadLog(null);
+        channel.close();
+    }
+}